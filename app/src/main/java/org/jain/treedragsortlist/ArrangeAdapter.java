@@ -10,13 +10,11 @@ import android.widget.ImageView;
 import android.widget.LinearLayout;
 
 import com.treeviewlist.AbstractTreeViewAdapter;
-import com.treeviewlist.InMemoryTreeNode;
 import com.treeviewlist.InMemoryTreeStateManager;
+import com.treeviewlist.TreeSnapshot;
 
 import org.jain.utils.StyleUtil;
 
-import java.util.List;
-import java.util.Map;
 
 public class ArrangeAdapter extends AbstractTreeViewAdapter<String> {
     private Activity mActivity;
@@ -32,28 +30,20 @@ public class ArrangeAdapter extends AbstractTreeViewAdapter<String> {
         treeStateManager.setDataTreeRefresher(this);
     }
 
-    public List<String> getVisibleList() {
-        return visibleList;
-    }
-
-    public Map<String, InMemoryTreeNode<String>> getNodeMap() {
-        return nodeMap;
-    }
-
     @Override
     public long getItemId(int position) {
         return position;
     }
 
     @Override
-    public View getNewChildView(InMemoryTreeNode<String> treeNodeInfo) {
+    public View getNewChildView(TreeSnapshot.Node<String> treeNodeInfo) {
         View contentView = LayoutInflater.from(mActivity).inflate(
             R.layout.action_arrange_item, null);
         return updateView(contentView, treeNodeInfo);
     }
 
     @Override
-    public View updateView(View contentView, InMemoryTreeNode<String> treeNodeInfo) {
+    public View updateView(View contentView, TreeSnapshot.Node<String> treeNodeInfo) {
         ArrangeHolder holder;
         if (contentView == null || contentView.getTag() == null) {
             contentView = LayoutInflater.from(mActivity).inflate(
@@ -84,18 +74,19 @@ public class ArrangeAdapter extends AbstractTreeViewAdapter<String> {
         if (treeNodeInfo.getId().equals(String.valueOf(TreeDragSortListActivity.SETTING_ID))) {
             holder.arrange_move.setVisibility(View.GONE);
         }
-        layoutConnectionLine(holder, treeNodeInfo.getId());
+        layoutConnectionLine(holder, treeNodeInfo);
         return contentView;
     }
 
     @Override
-    protected Drawable getDrawable(InMemoryTreeNode<String> nodeInfo) {
+    protected Drawable getDrawable(TreeSnapshot.RowPath<String> row) {
+        TreeSnapshot.Node<String> nodeInfo = row.getNode();
         ItemEntity item = (ItemEntity)nodeInfo.getData();
         Drawable expandable = mActivity.getResources().getDrawable(R.drawable.datatree_open);
         Drawable collapseAble = mActivity.getResources().getDrawable(R.drawable.datatree_close);
         Drawable dottedLine;
 
-        if (isLastChild(nodeInfo.getId())) {
+        if (row.isLastChild()) {
             dottedLine = mActivity.getResources().getDrawable(R.drawable.datatree_bottom);
         } else {
             dottedLine = mActivity.getResources().getDrawable(R.drawable.datatree_mid);
@@ -112,9 +103,9 @@ public class ArrangeAdapter extends AbstractTreeViewAdapter<String> {
         }
     }
 
-    protected void layoutConnectionLine(ArrangeHolder holder, String nodeID) {
+    protected void layoutConnectionLine(ArrangeHolder holder, TreeSnapshot.Node<String> nodeInfo) {
         holder.connectionLine.setImageResource(R.drawable.datatree_line);
-        if (nodeMap.get(nodeID).hasChildrenExpand()) {
+        if (nodeInfo.hasChildrenExpand()) {
             holder.connectionLine.setVisibility(View.VISIBLE);
         } else {
             holder.connectionLine.setVisibility(View.GONE);
@@ -134,7 +125,7 @@ public class ArrangeAdapter extends AbstractTreeViewAdapter<String> {
     }
 
     @Override
-    protected View getLoadingView(String nodeID) {
+    protected View getLoadingView(TreeSnapshot.RowPath<String> row) {
         LinearLayout layout = (LinearLayout) LayoutInflater.from(mActivity).inflate(
                 getTreeListItemWrapperId(), null);
         FrameLayout frameLayout = (FrameLayout) layout
@@ -142,25 +133,21 @@ public class ArrangeAdapter extends AbstractTreeViewAdapter<String> {
         View loadingView = LayoutInflater.from(mActivity).inflate(R.layout.loading_words_layout, null);
         frameLayout.addView(loadingView);
         LinearLayout indicatorView = (LinearLayout) layout.findViewById(com.treeviewlist.R.id.treeview_list_indent_view);
-        doAddConnectionLineLayout(indicatorView, nodeID);
+        doAddConnectionLineLayout(indicatorView, row);
         return layout;
     }
 
     @Override
-    protected void doAddConnectionLineLayout(ViewGroup layoutView, String nodeID) {
-        String parentID = getParent(nodeID);
-        if (parentID == null) {
-            return;
-        }
-
-        View connectionView = generateConnectionView();
-        if (isLastChild(parentID)) {
-            connectionView.setVisibility(View.INVISIBLE);
-        } else {
-            connectionView.setVisibility(View.VISIBLE);
+    protected void doAddConnectionLineLayout(ViewGroup layoutView, TreeSnapshot.RowPath<String> row) {
+        for (int level = row.getLevel() - 1; level >= 0; level--) {
+            View connectionView = generateConnectionView();
+            if (row.isLastChild(level)) {
+                connectionView.setVisibility(View.INVISIBLE);
+            } else {
+                connectionView.setVisibility(View.VISIBLE);
+            }
+            layoutView.addView(connectionView, 0);
         }
-        layoutView.addView(connectionView, 0);
-        doAddConnectionLineLayout(layoutView, parentID);
     }
 
     public interface ItemEvent {
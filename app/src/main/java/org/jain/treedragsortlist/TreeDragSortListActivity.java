@@ -19,8 +19,10 @@ import widgets.dragsortlist.DragSortListView;
 import widgets.dragsortlist.TreeDragSortController;
 import widgets.dragsortlist.TreeDragSortListView;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 
@@ -50,37 +52,31 @@ public class TreeDragSortListActivity extends Activity {
         public void drop(int from, int to) {
             if (mAdapter != null && from != to && to > 0) {
                 isSave = false;
-                String fromTreeNodeKey = mAdapter.getVisibleList().get(from);
-                InMemoryTreeNode<String> fromTreeNode = mAdapter.getNodeMap().get(fromTreeNodeKey);
-                List<InMemoryTreeNode<String>> childList = new ArrayList<>(fromTreeNode.getChildren());
-                String toTreeNodeKey = mAdapter.getVisibleList().get(to);
-                InMemoryTreeNode<String> toTreeNode = mAdapter.getNodeMap().get(toTreeNodeKey);
+                String fromTreeNodeKey = treeStateManager.getVisibleIdAt(from);
+                InMemoryTreeNode<String> fromTreeNode = treeStateManager.getInmemoryTreeNode(fromTreeNodeKey);
+                String toTreeNodeKey = treeStateManager.getVisibleIdAt(to);
+                InMemoryTreeNode<String> toTreeNode = treeStateManager.getInmemoryTreeNode(toTreeNodeKey);
                 if (noMoveItem(from, to, fromTreeNode, toTreeNode)) {
                     return;
                 }
-                // remove from tree node
-                treeStateManager.removeNodeRecursively(fromTreeNodeKey);
 
                 if (from > to) {
-                    treeStateManager.addBeforeChild(toTreeNode.getParent(), fromTreeNodeKey,
-                            toTreeNodeKey, fromTreeNode.getData(), true);
+                    treeStateManager.moveSubtree(fromTreeNodeKey, toTreeNode.getParent(), toTreeNodeKey);
                 } else if (toTreeNode.hasChildrenExpand() && toTreeNode.hasChildren()) {
-                    treeStateManager.addBeforeChild(toTreeNode.getId(), fromTreeNodeKey,
-                            null, fromTreeNode.getData(), true);
+                    treeStateManager.moveSubtree(fromTreeNodeKey, toTreeNodeKey,
+                            toTreeNode.getChildren().get(0).getId());
                 } else {
-                    treeStateManager.addAfterChild(toTreeNode.getParent(), fromTreeNodeKey,
-                            toTreeNodeKey, fromTreeNode.getData(), true);
-                }
-                for (InMemoryTreeNode<String> child : childList) {
-                    treeStateManager.addAfterChild(child.getParent(), child.getId(),
-                            null, child.getData(), false);
+                    InMemoryTreeNode<String> nextTreeNode =
+                            toTreeNode.getParentNode().getNextChild(toTreeNode);
+                    treeStateManager.moveSubtree(fromTreeNodeKey, toTreeNode.getParent(),
+                            nextTreeNode == null ? null : nextTreeNode.getId());
                 }
             }
         }
 
         private boolean noMoveItem(int from, int to, InMemoryTreeNode<String> fromTreeNode,
                                    InMemoryTreeNode<String> toTreeNode) {
-            return fromTreeNode.getId().equals(toTreeNode.getParent())
+            return treeStateManager.isAncestor(fromTreeNode.getId(), toTreeNode.getId())
                     || (fromTreeNode.hasChildren()
                     && ((from < to && toTreeNode.hasChildren() && toTreeNode.hasChildrenExpand())
                     || !toTreeNode.getParent().equals(String.valueOf(SETTING_ID))));
@@ -109,18 +105,7 @@ public class TreeDragSortListActivity extends Activity {
         }
 
         private boolean isMaxLevel(int max, InMemoryTreeNode<String> treeNode) {
-            boolean check = false;
-            if (treeNode.getLevel() >= max) {
-                check = true;
-            } else {
-                for (InMemoryTreeNode<String> child : treeNode.getChildren()) {
-                    if (isMaxLevel(max, child)) {
-                        check = true;
-                        break;
-                    }
-                }
-            }
-            return check;
+            return treeNode.getLevel() + treeNode.getSubtreeHeight() >= max;
         }
     };
 
@@ -148,42 +133,25 @@ public class TreeDragSortListActivity extends Activity {
         }
 
         @Override
-        public void addParent(String addName) {
-            ItemEntity parentNode = new ItemEntity();
+        public void addParent(final String addName) {
+            final ItemEntity parentNode = new ItemEntity();
             parentNode.setGroupName(addName);
-            String childKey;
+            final String childKey;
 
             if (longClickEntity.getItemId() != 0) {
                 childKey = String.valueOf(longClickEntity.getItemId());
             } else {
                 childKey = longClickEntity.getGroupName();
             }
-            InMemoryTreeNode<String> treeNode = mAdapter.getNodeMap().get(childKey);
-            int position;
-            InMemoryTreeNode<String> nextTreeNode;
-
-            List<InMemoryTreeNode<String>> sameLevelList = mAdapter.getNodeMap().get(treeNode.getParent()).getChildren();
-            position = sameLevelList.indexOf(treeNode);
-            if (sameLevelList.size() <= 1) {
-                nextTreeNode = null;
-            } else if (position == 0) {
-                nextTreeNode = sameLevelList.get(1);
-            } else {
-                nextTreeNode = sameLevelList.get(position - 1);
-            }
-            treeStateManager.removeNodeRecursively(childKey);
-            if (nextTreeNode == null) {
-                treeStateManager.addBeforeChild(treeNode.getParent(), addName,
-                        null, parentNode, true);
-            } else if(position == 0) {
-                treeStateManager.addBeforeChild(treeNode.getParent(), addName,
-                        nextTreeNode.getId(), parentNode, true);
-            } else {
-                treeStateManager.addAfterChild(treeNode.getParent(), addName,
-                        nextTreeNode.getId(), parentNode, true);
-            }
-            treeStateManager.addAfterChild(addName, childKey,
-                    null, longClickEntity, true);
+            final InMemoryTreeNode<String> treeNode = treeStateManager.getInmemoryTreeNode(childKey);
+            treeStateManager.runBatch(new Runnable() {
+                @Override
+                public void run() {
+                    treeStateManager.addBeforeChild(treeNode.getParent(), addName,
+                            childKey, parentNode, true);
+                    treeStateManager.moveSubtree(childKey, addName, null);
+                }
+            });
         }
     };
 
@@ -207,9 +175,14 @@ public class TreeDragSortListActivity extends Activity {
         currentList = new ArrayList<>(getCurrentList(20, 1, true));
         checkShowName = new ArrayList<>();
 
-        ItemEntity firstNode = getDefaultNode();
-        treeStateManager.addAfterChild(null, String.valueOf(firstNode.getItemId()), null, firstNode, true);
-        recursiveAddTreeNode(String.valueOf(firstNode.getItemId()), currentList, true);
+        final ItemEntity firstNode = getDefaultNode();
+        treeStateManager.runBatch(new Runnable() {
+            @Override
+            public void run() {
+                treeStateManager.addAfterChild(null, String.valueOf(firstNode.getItemId()), null, firstNode, true);
+                recursiveAddTreeNode(String.valueOf(firstNode.getItemId()), currentList, true);
+            }
+        });
         mAdapter = new ArrangeAdapter(this, treeStateManager, 20000, itemEvent);
     }
 
@@ -324,29 +297,69 @@ public class TreeDragSortListActivity extends Activity {
         return contentView;
     }
 
+    /**
+     * Collects the items of the tree with their children. Walks the tree with
+     * an explicit stack of levels, so deep trees do not overflow the stack.
+     */
     protected List<ItemEntity> recursiveGetFlowItem(
             Collection<InMemoryTreeNode<String>> treeNodeList,
             List<ItemEntity> itemEntityList, List<String> checkID) {
-        int index = 1;
-        for (InMemoryTreeNode<String> treeNode : treeNodeList) {
-            if (!checkID.contains(treeNode.getId())) {
-                ItemEntity entity = (ItemEntity) treeNode.getData();
-                entity.setOrder(index);
-                entity.setChild(new ArrayList<ItemEntity>());
-                if (treeNode.hasChildren()) {
-                    recursiveGetFlowItem(treeNode.getChildren(), entity.getChild(), checkID);
+        ArrayDeque<FlowLevel> levels = new ArrayDeque<FlowLevel>();
+        levels.push(new FlowLevel(treeNodeList.iterator(), itemEntityList));
+        while (!levels.isEmpty()) {
+            FlowLevel level = levels.peek();
+            if (!level.nodes.hasNext()) {
+                levels.pop();
+                if (!levels.isEmpty()) {
+                    addFlowItem(levels.peek(), checkID);
                 }
-                if (entity.getGroupName() != null && entity.getChild().size() == 0) {
-                    continue;
-                }
-                itemEntityList.add(entity);
-                checkID.add(treeNode.getId());
-                index++;
+                continue;
+            }
+            InMemoryTreeNode<String> treeNode = level.nodes.next();
+            if (checkID.contains(treeNode.getId())) {
+                continue;
+            }
+            ItemEntity entity = (ItemEntity) treeNode.getData();
+            entity.setOrder(level.index);
+            entity.setChild(new ArrayList<ItemEntity>());
+            level.current = treeNode;
+            if (treeNode.hasChildren()) {
+                levels.push(new FlowLevel(treeNode.getChildren().iterator(), entity.getChild()));
+            } else {
+                addFlowItem(level, checkID);
             }
         }
         return itemEntityList;
     }
 
+    /**
+     * Adds the current node of the level once its children are collected.
+     */
+    private void addFlowItem(FlowLevel level, List<String> checkID) {
+        ItemEntity entity = (ItemEntity) level.current.getData();
+        if (entity.getGroupName() != null && entity.getChild().size() == 0) {
+            return;
+        }
+        level.items.add(entity);
+        checkID.add(level.current.getId());
+        level.index++;
+    }
+
+    /**
+     * One level of the walk of {@link #recursiveGetFlowItem}.
+     */
+    private static final class FlowLevel {
+        final Iterator<InMemoryTreeNode<String>> nodes;
+        final List<ItemEntity> items;
+        InMemoryTreeNode<String> current;
+        int index = 1;
+
+        FlowLevel(Iterator<InMemoryTreeNode<String>> nodes, List<ItemEntity> items) {
+            this.nodes = nodes;
+            this.items = items;
+        }
+    }
+
     protected void done() {
         List<ItemEntity> itemEntityList =
                 recursiveGetFlowItem(mAdapter.getNodeMap().get(mAdapter.getVisibleList().get(0)).getChildren(),
@@ -69,6 +69,7 @@ public class TreeDragSortListView extends DragSortListView {
         }
         treeAdapter = (AbstractTreeViewAdapter<?>) adapter;
         super.setAdapter(treeAdapter);
+        treeAdapter.attachListView(this);
         if (mAdapterWrapper != null){
             syncAdapter();
         }
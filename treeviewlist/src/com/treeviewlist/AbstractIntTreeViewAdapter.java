@@ -0,0 +1,226 @@
+package com.treeviewlist;
+
+import android.app.Activity;
+import android.content.Context;
+import android.database.DataSetObserver;
+import android.graphics.drawable.Drawable;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.View.OnClickListener;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.ListAdapter;
+
+/**
+ * Adapter feeding the list from an {@link IntTreeStateManager}. Rows are
+ * resolved by position through the manager, ids are handed to subclasses as
+ * plain ints and serve as stable item ids. Every row view carries one
+ * {@link RowTag} which is rewritten on bind, so binding does not box the id.
+ */
+public abstract class AbstractIntTreeViewAdapter extends BaseAdapter implements ListAdapter {
+    private final IntTreeStateManager treeStateManager;
+    private final int numberOfLevels;
+    private final LayoutInflater layoutInflater;
+    private final Activity activity;
+    private int indentWidth = 20;
+    private Drawable collapsedDrawable;
+    private Drawable expandedDrawable;
+    private boolean collapsible;
+
+    /**
+     * Id of the node a row view is bound to.
+     */
+    private static final class RowTag {
+        int id;
+    }
+
+    private final OnClickListener indicatorClickListener = new OnClickListener() {
+        @Override
+        public void onClick(final View v) {
+            expandCollapse(((RowTag) v.getTag()).id);
+        }
+    };
+
+    public AbstractIntTreeViewAdapter(final Activity activity,
+                                      final IntTreeStateManager treeStateManager,
+                                      final int numberOfLevels) {
+        this.activity = activity;
+        this.treeStateManager = treeStateManager;
+        this.numberOfLevels = numberOfLevels;
+        this.layoutInflater = (LayoutInflater) activity
+                .getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+    }
+
+    public Activity getActivity() {
+        return activity;
+    }
+
+    protected IntTreeStateManager getManager() {
+        return treeStateManager;
+    }
+
+    /**
+     * Called when new view is to be created.
+     *
+     * @param id    id of the node
+     * @param level level of the node
+     * @param data  data of the node
+     * @return view that should be displayed as tree content
+     */
+    public abstract View getNewChildView(int id, int level, Object data);
+
+    /**
+     * Called when the view is going to be reused for the node.
+     *
+     * @param view  view to update
+     * @param id    id of the node
+     * @param level level of the node
+     * @param data  data of the node
+     * @return view to use as row content
+     */
+    public abstract View updateView(View view, int id, int level, Object data);
+
+    @Override
+    public void registerDataSetObserver(final DataSetObserver observer) {
+        treeStateManager.registerDataSetObserver(observer);
+    }
+
+    @Override
+    public void unregisterDataSetObserver(final DataSetObserver observer) {
+        treeStateManager.unregisterDataSetObserver(observer);
+    }
+
+    @Override
+    public int getCount() {
+        return treeStateManager.getVisibleCount();
+    }
+
+    /**
+     * @return id of the node shown at the position
+     */
+    public int getIdAt(final int position) {
+        return treeStateManager.getVisibleIdAt(position);
+    }
+
+    @Override
+    public Object getItem(final int position) {
+        return treeStateManager.getData(getIdAt(position));
+    }
+
+    @Override
+    public long getItemId(final int position) {
+        return getIdAt(position);
+    }
+
+    @Override
+    public boolean hasStableIds() { // NOPMD
+        return true;
+    }
+
+    @Override
+    public int getItemViewType(final int position) {
+        return Math.min(treeStateManager.getLevel(getIdAt(position)), numberOfLevels - 1);
+    }
+
+    @Override
+    public int getViewTypeCount() {
+        return numberOfLevels;
+    }
+
+    protected int getTreeListItemWrapperId() {
+        return R.layout.tree_list_item_wrapper;
+    }
+
+    @Override
+    public final View getView(final int position, final View convertView,
+                              final ViewGroup parent) {
+        final int id = getIdAt(position);
+        final int level = treeStateManager.getLevel(id);
+        final Object data = treeStateManager.getData(id);
+        final LinearLayout layout;
+        final boolean newChildView = convertView == null || convertView.getTag() == null;
+        final View childView;
+        if (newChildView) {
+            layout = (LinearLayout) layoutInflater.inflate(getTreeListItemWrapperId(), null);
+            childView = getNewChildView(id, level, data);
+        } else {
+            layout = (LinearLayout) convertView;
+            final FrameLayout frameLayout = (FrameLayout) layout
+                    .findViewById(R.id.treeview_list_item_frame);
+            childView = updateView(frameLayout.getChildAt(0), id, level, data);
+        }
+        populateTreeItem(layout, childView, id, level, newChildView);
+        return layout;
+    }
+
+    private void populateTreeItem(final LinearLayout layout, final View childView,
+                                  final int id, final int level, final boolean newChildView) {
+        final LinearLayout indentView = (LinearLayout) layout
+                .findViewById(R.id.treeview_list_indent_view);
+        indentView.setLayoutParams(new LinearLayout.LayoutParams(
+                indentWidth * level, ViewGroup.LayoutParams.MATCH_PARENT));
+
+        final ImageView image = (ImageView) layout.findViewById(R.id.treeview_list_item_image);
+        image.setImageDrawable(getDrawable(id));
+        final LinearLayout imageLayout = (LinearLayout) layout
+                .findViewById(R.id.datatree_image_layout);
+        final RowTag tag;
+        if (newChildView) {
+            tag = new RowTag();
+            imageLayout.setTag(tag);
+            layout.setTag(tag);
+        } else {
+            tag = (RowTag) layout.getTag();
+        }
+        tag.id = id;
+        imageLayout.setOnClickListener(collapsible ? indicatorClickListener : null);
+
+        final FrameLayout frameLayout = (FrameLayout) layout
+                .findViewById(R.id.treeview_list_item_frame);
+        if (newChildView) {
+            frameLayout.addView(childView, new FrameLayout.LayoutParams(
+                    FrameLayout.LayoutParams.MATCH_PARENT, FrameLayout.LayoutParams.MATCH_PARENT));
+        }
+    }
+
+    protected Drawable getDrawable(final int id) {
+        if (!collapsible || !treeStateManager.hasChildren(id)) {
+            return null;
+        }
+        return treeStateManager.isExpanded(id) ? expandedDrawable : collapsedDrawable;
+    }
+
+    protected void expandCollapse(final int id) {
+        if (!treeStateManager.hasChildren(id)) {
+            return;
+        }
+        if (treeStateManager.isExpanded(id)) {
+            treeStateManager.collapseChildren(id);
+        } else {
+            treeStateManager.expandDirectChildren(id);
+        }
+    }
+
+    public void handleItemClick(final int id) {
+        expandCollapse(id);
+    }
+
+    public void setCollapsedDrawable(final Drawable collapsedDrawable) {
+        this.collapsedDrawable = collapsedDrawable;
+    }
+
+    public void setExpandedDrawable(final Drawable expandedDrawable) {
+        this.expandedDrawable = expandedDrawable;
+    }
+
+    public void setIndentWidth(final int indentWidth) {
+        this.indentWidth = indentWidth;
+    }
+
+    public void setCollapsible(final boolean collapsible) {
+        this.collapsible = collapsible;
+    }
+}
@@ -10,16 +10,19 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.BaseAdapter;
 import android.widget.FrameLayout;
 import android.widget.FrameLayout.LayoutParams;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.ListAdapter;
+import android.widget.ListView;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Adapter used to feed the table view.
@@ -27,7 +30,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * @param <T> class for ID of the tree
  */
 public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
-        ListAdapter, DataTreeRefresher<T> {
+        ListAdapter, DataTreeRefresher<T>, TreeChangeListener {
     private static final String TAG = AbstractTreeViewAdapter.class
             .getSimpleName();
     protected final String LOADING_VIEW_KEY = "?LOADING_VIEW_KEY";
@@ -42,11 +45,15 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
     private Drawable rowBackgroundDrawable;
     private OnClickListener wrapViewClickListener;
     private View.OnLongClickListener wrapViewLongClickListener;
-    protected Map<T, InMemoryTreeNode<T>> nodeMap;
-    protected List<T> visibleList;
+    // kept up to date from the row changes, read them through the getters
+    // so that inserted rows are resolved first
+    protected volatile Map<T, InMemoryTreeNode<T>> nodeMap;
+    protected volatile List<T> visibleList;
+    private volatile TreeSnapshot<T> snapshot;
+    private boolean rowsUnresolved;
     private InMemoryTreeNode<T> topNode;
-    protected ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     protected Handler handler = new Handler();
+    private AbsListView attachedListView;
 
     private final OnClickListener indicatorClickListener = new OnClickListener() {
         @Override
@@ -69,7 +76,7 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
     }
 
     protected void expandCollapse(final T id, boolean needToggle) {
-        final InMemoryTreeNode<T> info = nodeMap.get(id);
+        final InMemoryTreeNode<T> info = getNodeMap().get(id);
         if (!info.hasChildren()) {
             // ignore - no default action
             return;
@@ -103,6 +110,17 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
         this.expandedDrawable = null;
         this.rowBackgroundDrawable = null;
         this.indicatorBackgroundDrawable = null;
+        treeStateManager.registerTreeChangeListener(this);
+    }
+
+    /**
+     * Attaches the list showing this adapter, so rows whose data changed can
+     * be rebound in place instead of refreshing the whole list.
+     *
+     * @param listView list view using this adapter
+     */
+    public void attachListView(final AbsListView listView) {
+        this.attachedListView = listView;
     }
 
     @Override
@@ -117,15 +135,62 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
 
     @Override
     public int getCount() {
-        if (nodeMap == null) {
-            return 0;
-        }
-        return visibleList.size();
+        final TreeSnapshot<T> current = snapshot;
+        return current == null ? 0 : current.getVisibleCount();
     }
 
     @Override
     public Object getItem(final int position) {
-        return nodeMap.get(visibleList.get(position));
+        return getNodeAt(position);
+    }
+
+    /**
+     * Snapshot of the tree the list currently shows. Reading it does not lock
+     * the manager.
+     *
+     * @return snapshot taken at the last refresh
+     */
+    public TreeSnapshot<T> getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Resolves the row in the snapshot the list currently shows.
+     *
+     * @param position position in the list
+     * @return immutable node shown at the position or null
+     */
+    public TreeSnapshot.Node<T> getRow(final int position) {
+        final TreeSnapshot<T> current = snapshot;
+        return current == null ? null : current.getRowAt(position);
+    }
+
+    /**
+     * Resolves the row with its ancestors in the snapshot the list currently
+     * shows.
+     *
+     * @param position position in the list
+     * @return row shown at the position or null
+     */
+    public TreeSnapshot.RowPath<T> getRowPath(final int position) {
+        final TreeSnapshot<T> current = snapshot;
+        return current == null ? null : current.getRowPathAt(position);
+    }
+
+    /**
+     * Resolves the row through the snapshot and the node map taken at the
+     * same refresh, so neither needs the manager's lock.
+     *
+     * @param position position in the list
+     * @return node shown at the position
+     */
+    protected InMemoryTreeNode<T> getNodeAt(final int position) {
+        final TreeSnapshot.Node<T> row = getRow(position);
+        if (row == null) {
+            return null;
+        }
+        final Map<T, InMemoryTreeNode<T>> nodes = getNodeMap();
+        return nodes == null ? null : nodes.get(row.getId());
     }
 
     @Override
@@ -135,7 +200,7 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
 
     @Override
     public int getItemViewType(final int position) {
-        return nodeMap.get(visibleList.get(position)).getLevel();
+        return getRow(position).getLevel();
     }
 
     @Override
@@ -167,10 +232,11 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
                               final ViewGroup parent) {
         Log.d(TAG, "Creating a view based on " + convertView
                 + " with position " + position);
-        final InMemoryTreeNode<T> nodeInfo = nodeMap.get(visibleList.get(position));
+        final TreeSnapshot.RowPath<T> row = getRowPath(position);
+        final TreeSnapshot.Node<T> nodeInfo = row.getNode();
 
-        if (nodeInfo.getId().equals(getParent(nodeInfo.getId()) + LOADING_VIEW_KEY)) {
-            return getLoadingView(nodeInfo.getId());
+        if (nodeInfo.getId().equals(row.getParentId() + LOADING_VIEW_KEY)) {
+            return getLoadingView(row);
         }
 
         if (convertView == null || convertView.getTag() == null) {
@@ -178,7 +244,7 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
             final LinearLayout layout = (LinearLayout) layoutInflater.inflate(
                     getTreeListItemWrapperId(), null);
             return populateTreeItem(layout, getNewChildView(nodeInfo),
-                    nodeInfo, true);
+                    row, true);
         } else {
             Log.d(TAG, "Reusing the view");
             final LinearLayout linear = (LinearLayout) convertView;
@@ -186,17 +252,17 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
                     .findViewById(R.id.treeview_list_item_frame);
             final View childView = frameLayout.getChildAt(0);
             updateView(childView, nodeInfo);
-            return populateTreeItem(linear, childView, nodeInfo, false);
+            return populateTreeItem(linear, childView, row, false);
         }
     }
 
     /**
      * Called when new view is to be created.
      *
-     * @param treeNodeInfo node info
+     * @param treeNodeInfo node as of the snapshot shown
      * @return view that should be displayed as tree content
      */
-    public abstract View getNewChildView(InMemoryTreeNode<T> treeNodeInfo);
+    public abstract View getNewChildView(TreeSnapshot.Node<T> treeNodeInfo);
 
     /**
      * Called when new view is going to be reused. You should update the view
@@ -205,19 +271,19 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
      * reused.
      *
      * @param view         view that should be updated with the new values
-     * @param treeNodeInfo node info used to populate the view
+     * @param treeNodeInfo node as of the snapshot shown, used to populate the view
      * @return view to used as row indented content
      */
-    public abstract View updateView(View view, InMemoryTreeNode<T> treeNodeInfo);
+    public abstract View updateView(View view, TreeSnapshot.Node<T> treeNodeInfo);
 
     /**
      * Retrieves background drawable for the node.
      *
-     * @param treeNodeInfo node info
+     * @param treeNodeInfo node as of the snapshot shown
      * @return drawable returned as background for the whole row. Might be null,
      * then default background is used
      */
-    public Drawable getBackgroundDrawable(final InMemoryTreeNode<T> treeNodeInfo) { // NOPMD
+    public Drawable getBackgroundDrawable(final TreeSnapshot.Node<T> treeNodeInfo) { // NOPMD
         return null;
     }
 
@@ -231,19 +297,20 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
     }
 
     public final LinearLayout populateTreeItem(final LinearLayout layout,
-                                               final View childView, final InMemoryTreeNode<T> nodeInfo,
+                                               final View childView, final TreeSnapshot.RowPath<T> row,
                                                final boolean newChildView) {
+        final TreeSnapshot.Node<T> nodeInfo = row.getNode();
 
         ImageView imgTopStretchView = (ImageView) layout.findViewById(R.id.datatree_top_stretch_view);
         ImageView imgBottomStretchView = (ImageView) layout.findViewById(R.id.datatree_bottom_stretch_view);
-        layoutStretchView(imgTopStretchView, imgBottomStretchView, nodeInfo);
+        layoutStretchView(imgTopStretchView, imgBottomStretchView, row);
 
         final LinearLayout indicatorView = (LinearLayout) layout.findViewById(R.id.treeview_list_indent_view);
         indicatorView.removeAllViews();
-        doAddConnectionLineLayout(indicatorView, nodeInfo.getId());
+        doAddConnectionLineLayout(indicatorView, row);
 
         final ImageView image = (ImageView) layout.findViewById(R.id.treeview_list_item_image);
-        image.setImageDrawable(getDrawable(nodeInfo));
+        image.setImageDrawable(getDrawable(row));
 
         final LinearLayout imageLayout = (LinearLayout) layout.findViewById(R.id.datatree_image_layout);
         imageLayout.setTag(nodeInfo.getId());
@@ -277,7 +344,8 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
         return getIndentWidth() * (nodeInfo.getLevel());
     }
 
-    protected Drawable getDrawable(final InMemoryTreeNode<T> nodeInfo) {
+    protected Drawable getDrawable(final TreeSnapshot.RowPath<T> row) {
+        final TreeSnapshot.Node<T> nodeInfo = row.getNode();
         if (!nodeInfo.hasChildren() || !collapsible) {
             return getDrawableOrDefaultBackground(indicatorBackgroundDrawable);
         }
@@ -333,14 +401,14 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
         expandCollapse((T) id, true);
     }
 
-    protected void layoutStretchView(ImageView imgTopDottedView, ImageView imgBottomDottedView, InMemoryTreeNode<T> nodeInfo) {
-        if (isLastChild(nodeInfo.getId()) || isLastVisibleItem(nodeInfo.getId())) {
+    protected void layoutStretchView(ImageView imgTopDottedView, ImageView imgBottomDottedView, TreeSnapshot.RowPath<T> row) {
+        if (row.isLastChild() || row.isLastRow()) {
             imgBottomDottedView.setVisibility(View.INVISIBLE);
         } else {
             imgBottomDottedView.setVisibility(View.VISIBLE);
         }
 
-        if (isFirstVisibleItem(nodeInfo.getId())) {
+        if (row.isFirstRow()) {
             imgTopDottedView.setVisibility(View.INVISIBLE);
         } else {
             imgTopDottedView.setVisibility(View.VISIBLE);
@@ -358,7 +426,7 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
     // InMemoryTreeNode Tool Function
 
     protected T getParent(final T id) {
-        final InMemoryTreeNode<T> node = nodeMap.get(id);
+        final InMemoryTreeNode<T> node = getNodeMap().get(id);
         if (node == null) {
             return null;
         }
@@ -367,66 +435,39 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
 
     public boolean isFirstChild(T nodeID) {
         T parentID = getParent(nodeID);
-        InMemoryTreeNode parentNode = getNodeFromTreeOrThrowAllowRoot(parentID);
+        InMemoryTreeNode<T> parentNode = getNodeFromTreeOrThrowAllowRoot(parentID);
 
         if (parentNode == null) {
             return false;
         }
-
-        int firstVisibleType = 0;
-        for (int i = treeStateManager.getChildTypeCount() - 1; i >= 0; i--) {
-            List<InMemoryTreeNode<T>> childNodeList = parentNode.getChildren(i);
-            if (childNodeList.size() > 0 && childNodeList.get(0).isVisible()) {
-                firstVisibleType = i;
-            }
-        }
-
-        List<T> childList = parentNode.getChildIdList(firstVisibleType);
-        if (childList.size() > 0 && childList.indexOf(nodeID) == 0) {
-            return true;
-        }
-        return false;
+        final InMemoryTreeNode<T> node = getNodeFromTreeOrThrow(nodeID);
+        return node != null && parentNode.isFirstShownChild(node);
     }
 
     public boolean isLastChild(T nodeID) {
         T parentID = getParent(nodeID);
-        InMemoryTreeNode parentNode = getNodeFromTreeOrThrowAllowRoot(parentID);
+        InMemoryTreeNode<T> parentNode = getNodeFromTreeOrThrowAllowRoot(parentID);
 
         if (parentNode == null) {
             return false;
         }
-
-        int lastVisibleType = 0;
-        for (int i = 0; i < treeStateManager.getChildTypeCount(); i++) {
-            List<InMemoryTreeNode<T>> childNodeList = parentNode.getChildren(i);
-            if (childNodeList.size() > 0 && childNodeList.get(0).isVisible()) {
-                lastVisibleType = i;
-            }
-        }
-        List<T> childList = parentNode.getChildIdList(lastVisibleType);
-        if (childList.size() > 0 && childList.indexOf(nodeID) == childList.size() - 1) {
-            return true;
-        }
-        return false;
+        final InMemoryTreeNode<T> node = getNodeFromTreeOrThrow(nodeID);
+        return node != null && parentNode.isLastShownChild(node);
     }
 
     public boolean isLastVisibleItem(T nodeID) {
-        if (visibleList.indexOf(nodeID) == visibleList.size() - 1) {
-            return true;
-        }
-        return false;
+        final List<T> rows = getVisibleList();
+        return rows != null && !rows.isEmpty() && rows.get(rows.size() - 1).equals(nodeID);
     }
 
     public boolean isFirstVisibleItem(T nodeID) {
-        if (visibleList.indexOf(nodeID) == 0) {
-            return true;
-        }
-        return false;
+        final List<T> rows = getVisibleList();
+        return rows != null && !rows.isEmpty() && rows.get(0).equals(nodeID);
     }
 
     public List<T> getChildren(final T id, int childType) {
         final InMemoryTreeNode<T> node = getNodeFromTreeOrThrowAllowRoot(id);
-        return node.getChildIdList(childType);
+        return new ArrayList<T>(node.getChildIdList(childType));
     }
 
     protected InMemoryTreeNode<T> getNodeFromTreeOrThrowAllowRoot(final T id) {
@@ -440,42 +481,44 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
         if (id == null) {
             throw new NodeNotInTreeException("(null)");
         }
-        final InMemoryTreeNode<T> node = nodeMap.get(id);
+        final InMemoryTreeNode<T> node = getNodeMap().get(id);
         return node;
     }
 
+    /**
+     * Ids of the shown rows, in the order of the list.
+     *
+     * @return visible ids as of the last refresh
+     */
     public List<T> getVisibleList() {
-        readWriteLock.readLock().lock();
-        try {
-            return visibleList;
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        resolveRows();
+        return visibleList;
     }
 
+    /**
+     * Nodes of the shown rows.
+     *
+     * @return visible nodes as of the last refresh, by id
+     */
     public Map<T, InMemoryTreeNode<T>> getNodeMap() {
-        readWriteLock.readLock().lock();
-        try {
-            return nodeMap;
-        } finally {
-            readWriteLock.readLock().unlock();
-        }
+        resolveRows();
+        return nodeMap;
     }
 
-    protected void doAddConnectionLineLayout(ViewGroup layoutView, T nodeID) {
-        T parentID = getParent(nodeID);
-        if (parentID == null) {
-            return;
-        }
-
-        View connectionView = generateConnectionView();
-        if (isLastChild(parentID)) {
-            connectionView.setVisibility(View.INVISIBLE);
-        } else {
-            connectionView.setVisibility(View.VISIBLE);
+    /**
+     * Adds a connection line for every ancestor of the node, walking up the
+     * row path in a loop. Lines of nearer ancestors end up on the right.
+     */
+    protected void doAddConnectionLineLayout(ViewGroup layoutView, TreeSnapshot.RowPath<T> row) {
+        for (int level = row.getLevel() - 1; level >= 0; level--) {
+            View connectionView = generateConnectionView();
+            if (row.isLastChild(level)) {
+                connectionView.setVisibility(View.INVISIBLE);
+            } else {
+                connectionView.setVisibility(View.VISIBLE);
+            }
+            layoutView.addView(connectionView, 0);
         }
-        layoutView.addView(connectionView, 0);
-        doAddConnectionLineLayout(layoutView, parentID);
     }
 
     protected View generateConnectionView() {
@@ -487,19 +530,149 @@ public abstract class AbstractTreeViewAdapter<T> extends BaseAdapter implements
 
     @Override
     public void refreshSourceData(Map<T, InMemoryTreeNode<T>> nodeMap, List<T> visibleList) {
-        readWriteLock.writeLock().lock();
-        try {
-            this.nodeMap = nodeMap;
-            topNode = treeStateManager.getTopSentinel();
-            if (nodeMap == null) {
+        this.nodeMap = nodeMap;
+        topNode = treeStateManager.getTopSentinel();
+        rowsUnresolved = false;
+        if (nodeMap == null) {
+            snapshot = null;
+            return;
+        }
+        this.visibleList = visibleList;
+        // taken by the manager together with the map
+        snapshot = treeStateManager.getDispatchedSnapshot();
+    }
+
+    // Row changes are applied to the visible list and the node map in the
+    // order they come. Inserted rows are left as null ids and resolved from
+    // the snapshot of the refresh once the list is read, because the ids of
+    // the positions are only known for the state after the last change.
+
+    @Override
+    public void onRowsInserted(final int position, final int count) {
+        if (takeDispatchedSnapshot() && position <= visibleList.size()) {
+            visibleList.addAll(position, Collections.<T>nCopies(count, null));
+        }
+        rowsUnresolved = true;
+    }
+
+    @Override
+    public void onRowsRemoved(final int position, final int count) {
+        if (takeDispatchedSnapshot() && position + count <= visibleList.size()) {
+            final List<T> removed = visibleList.subList(position, position + count);
+            for (final T id : removed) {
+                if (id != null) {
+                    nodeMap.remove(id);
+                }
+            }
+            removed.clear();
+        } else {
+            rowsUnresolved = true;
+        }
+    }
+
+    @Override
+    public void onRowsMoved(final int fromPosition, final int toPosition, final int count) {
+        if (takeDispatchedSnapshot() && fromPosition + count <= visibleList.size()
+                && toPosition + count <= visibleList.size()) {
+            final List<T> block = visibleList.subList(fromPosition, fromPosition + count);
+            final List<T> moved = new ArrayList<T>(block);
+            block.clear();
+            visibleList.addAll(toPosition, moved);
+        } else {
+            rowsUnresolved = true;
+        }
+    }
+
+    @Override
+    public void onTreeChanged() {
+        // the manager passes a new node map through refreshSourceData
+    }
+
+    @Override
+    public void onRowsChanged(final int position, final int count) {
+        if (takeDispatchedSnapshot()) {
+            rebindRows(position, count);
+        }
+    }
+
+    /**
+     * Moves to the snapshot of the refresh being delivered.
+     *
+     * @return false before the first refresh, there is nothing to update then
+     */
+    private boolean takeDispatchedSnapshot() {
+        if (snapshot == null || visibleList == null) {
+            return false;
+        }
+        snapshot = treeStateManager.getDispatchedSnapshot();
+        return true;
+    }
+
+    /**
+     * Fills in the ids and nodes of the rows inserted since the last read.
+     * When the changes did not add up to the snapshot, the list is taken from
+     * the snapshot again.
+     */
+    private void resolveRows() {
+        if (!rowsUnresolved) {
+            return;
+        }
+        rowsUnresolved = false;
+        final TreeSnapshot<T> current = snapshot;
+        final List<T> rows = visibleList;
+        if (current == null || rows == null) {
+            return;
+        }
+        final List<T> added = new ArrayList<T>();
+        final int count = current.getVisibleCount();
+        if (rows.size() != count) {
+            rows.clear();
+            nodeMap.clear();
+            for (int i = 0; i < count; i++) {
+                rows.add(current.getRowAt(i).getId());
+            }
+            added.addAll(rows);
+        } else {
+            for (int i = 0; i < count; i++) {
+                if (rows.get(i) == null) {
+                    final T id = current.getRowAt(i).getId();
+                    rows.set(i, id);
+                    added.add(id);
+                }
+            }
+        }
+        treeStateManager.resolveNodes(added, nodeMap);
+    }
+
+    /**
+     * Rebinds the on-screen rows in the range through the adapter set on the
+     * list (which may wrap this one). Falls back to a full refresh when no list
+     * is attached or a row cannot be reused.
+     *
+     * @param position first changed row
+     * @param count    number of changed rows
+     */
+    protected void rebindRows(final int position, final int count) {
+        final AbsListView listView = attachedListView;
+        if (listView == null || listView.getAdapter() == null) {
+            refresh();
+            return;
+        }
+        final ListAdapter adapter = listView.getAdapter();
+        final int headers = listView instanceof ListView
+                ? ((ListView) listView).getHeaderViewsCount() : 0;
+        final int first = listView.getFirstVisiblePosition();
+        final int from = Math.max(first, position + headers);
+        final int to = Math.min(listView.getLastVisiblePosition(), position + headers + count - 1);
+        for (int p = from; p <= to; p++) {
+            final View row = listView.getChildAt(p - first);
+            if (row == null || adapter.getView(p, row, listView) != row) {
+                refresh();
                 return;
             }
-            this.visibleList = visibleList;
-        } finally {
-            readWriteLock.writeLock().unlock();
         }
     }
 
-    abstract protected View getLoadingView(T nodeID);
+    abstract protected View getLoadingView(TreeSnapshot.RowPath<T> row);
 
 }
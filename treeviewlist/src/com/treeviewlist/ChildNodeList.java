@@ -0,0 +1,577 @@
+package com.treeviewlist;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Array backed list of all children of a node, ordered by child type and then
+ * by position within the type. Children of one type form a contiguous
+ * segment, so sibling navigation across types is a slot step. Expanded and
+ * non-empty types are kept as bit masks, which answers "first/last shown
+ * child" without looping over the types.
+ * <p>
+ * The array is a gap buffer: free cells sit at the place of the last insert
+ * or removal, so edits close to each other (appends, drags within a list)
+ * move only the children between them. Every child records its cell in the
+ * array, which gives its slot in O(1) without renumbering the later children
+ * on every edit.
+ * <p>
+ * The list keeps a Fenwick tree of row counts of the children over the cells,
+ * as if all types were expanded (cells of the gap count zero), plus the rows
+ * of every segment. Moving the gap updates the tree for the moved children
+ * only; it is rebuilt lazily when the array grows or is sorted.
+ *
+ * @param <T> type of the identifier used by the tree
+ */
+final class ChildNodeList<T> extends AbstractList<InMemoryTreeNode<T>> implements
+        RandomAccess, Serializable {
+    private static final long serialVersionUID = 1L;
+    static final int MAX_CHILD_TYPES = 64;
+    private static final int MIN_CAPACITY = 4;
+    private static final Object[] EMPTY = new Object[0];
+
+    private Object[] nodes = EMPTY;
+    private int gapStart;
+    private int gapEnd;
+    private final int[] segmentEnd;
+    private final int[] segmentRows;
+    private long expandedTypes;
+    private long nonEmptyTypes;
+    private int[] rowTree;
+    private boolean rowTreeValid;
+
+    ChildNodeList(final int childTypeCount) {
+        segmentEnd = new int[childTypeCount];
+        segmentRows = new int[childTypeCount];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public InMemoryTreeNode<T> get(final int slot) {
+        final int size = size();
+        if (slot < 0 || slot >= size) {
+            throw new IndexOutOfBoundsException("Index: " + slot + ", Size: " + size);
+        }
+        return (InMemoryTreeNode<T>) nodes[cell(slot)];
+    }
+
+    @Override
+    public int size() {
+        return nodes.length - (gapEnd - gapStart);
+    }
+
+    private int cell(final int slot) {
+        return slot < gapStart ? slot : slot + gapEnd - gapStart;
+    }
+
+    /**
+     * Slot of a child of this list in O(1).
+     *
+     * @param child child in this list
+     * @return slot of the child
+     */
+    int slotOf(final InMemoryTreeNode<T> child) {
+        final int cell = child.getCell();
+        return cell < gapStart ? cell : cell - (gapEnd - gapStart);
+    }
+
+    int segmentStart(final int childType) {
+        return childType == 0 ? 0 : segmentEnd[childType - 1];
+    }
+
+    int segmentEnd(final int childType) {
+        return segmentEnd[childType];
+    }
+
+    int segmentSize(final int childType) {
+        return segmentEnd[childType] - segmentStart(childType);
+    }
+
+    /**
+     * Inserts the child into the segment of its type.
+     *
+     * @param childType type of the child
+     * @param index     position within the segment
+     * @param node      child node
+     */
+    void add(final int childType, final int index, final InMemoryTreeNode<T> node) {
+        final int start = segmentStart(childType);
+        if (index < 0 || index > segmentEnd[childType] - start) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: "
+                    + (segmentEnd[childType] - start));
+        }
+        if (gapStart == gapEnd) {
+            grow();
+        }
+        moveGap(start + index);
+        final int cell = gapStart++;
+        nodes[cell] = node;
+        node.setCell(cell);
+        modCount++;
+        for (int t = childType; t < segmentEnd.length; t++) {
+            segmentEnd[t]++;
+        }
+        nonEmptyTypes |= 1L << childType;
+        final int rows = node.getRowCount();
+        segmentRows[childType] += rows;
+        if (rowTreeValid) {
+            addToRowTree(cell, rows);
+        }
+    }
+
+    @Override
+    public InMemoryTreeNode<T> remove(final int slot) {
+        final InMemoryTreeNode<T> removed = get(slot);
+        final int childType = removed.getNodeType();
+        moveGap(slot);
+        final int cell = gapEnd++;
+        nodes[cell] = null;
+        removed.setCell(-1);
+        modCount++;
+        for (int t = childType; t < segmentEnd.length; t++) {
+            segmentEnd[t]--;
+        }
+        if (segmentSize(childType) == 0) {
+            nonEmptyTypes &= ~(1L << childType);
+        }
+        final int rows = removed.getRowCount();
+        segmentRows[childType] -= rows;
+        if (rowTreeValid) {
+            addToRowTree(cell, -rows);
+        }
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(nodes, null);
+        gapStart = 0;
+        gapEnd = nodes.length;
+        Arrays.fill(segmentEnd, 0);
+        Arrays.fill(segmentRows, 0);
+        nonEmptyTypes = 0;
+        modCount++;
+        rowTreeValid = false;
+    }
+
+    /**
+     * Moves the gap so that it starts at the slot, shifting only the children
+     * between the old and the new place.
+     */
+    private void moveGap(final int slot) {
+        if (gapStart == gapEnd) {
+            gapStart = slot; // a full array has cells equal to slots
+            gapEnd = slot;
+            return;
+        }
+        while (gapStart > slot) {
+            gapStart--;
+            gapEnd--;
+            moveCell(gapStart, gapEnd);
+        }
+        while (gapStart < slot) {
+            moveCell(gapEnd, gapStart);
+            gapStart++;
+            gapEnd++;
+        }
+    }
+
+    private void moveCell(final int from, final int to) {
+        final InMemoryTreeNode<?> node = (InMemoryTreeNode<?>) nodes[from];
+        nodes[to] = node;
+        nodes[from] = null;
+        node.setCell(to);
+        if (rowTreeValid) {
+            final int rows = node.getRowCount();
+            addToRowTree(from, -rows);
+            addToRowTree(to, rows);
+        }
+    }
+
+    /**
+     * Doubles the array, the new cells form the gap at its old place.
+     */
+    private void grow() {
+        final int capacity = Math.max(MIN_CAPACITY, nodes.length * 2);
+        final Object[] grown = new Object[capacity];
+        final int tail = nodes.length - gapEnd;
+        System.arraycopy(nodes, 0, grown, 0, gapStart);
+        System.arraycopy(nodes, gapEnd, grown, capacity - tail, tail);
+        nodes = grown;
+        gapEnd = capacity - tail;
+        for (int i = gapEnd; i < capacity; i++) {
+            ((InMemoryTreeNode<?>) nodes[i]).setCell(i);
+        }
+        rowTreeValid = false;
+    }
+
+    /**
+     * Writes back the order of the children sorted apart from the list. The
+     * copy has to be taken from this list with no change since. Row counts of
+     * the segments stay, the Fenwick tree is rebuilt lazily.
+     *
+     * @param order sorted copy of the children
+     */
+    void applyOrder(final Order<T> order) {
+        if (order.list != this || order.expectedModCount != modCount) {
+            throw new ConcurrentModificationException();
+        }
+        // a contiguous array keeps every segment in one range of cells
+        moveGap(size());
+        System.arraycopy(order.nodes, 0, nodes, 0, order.nodes.length);
+        for (int i = 0; i < gapStart; i++) {
+            ((InMemoryTreeNode<?>) nodes[i]).setCell(i);
+        }
+        rowTreeValid = false;
+        modCount++;
+    }
+
+    boolean isExpanded(final int childType) {
+        return (expandedTypes & (1L << childType)) != 0;
+    }
+
+    /**
+     * Only flips the flag, the owning node accounts the change of its rows.
+     *
+     * @param childType type of the children
+     * @param expanded  whether the children are shown
+     */
+    void setExpanded(final int childType, final boolean expanded) {
+        if (expanded) {
+            expandedTypes |= 1L << childType;
+        } else {
+            expandedTypes &= ~(1L << childType);
+        }
+    }
+
+    /**
+     * Expands every type which has children.
+     */
+    void expandNonEmpty() {
+        expandedTypes |= nonEmptyTypes;
+    }
+
+    /**
+     * Collapses every type.
+     *
+     * @return mask of the types which had children shown
+     */
+    long collapseAll() {
+        final long shown = expandedTypes & nonEmptyTypes;
+        expandedTypes = 0;
+        return shown;
+    }
+
+    /**
+     * @return mask of the types which have children and are expanded
+     */
+    long getShownTypes() {
+        return expandedTypes & nonEmptyTypes;
+    }
+
+    /**
+     * @return first type with children shown or -1
+     */
+    int getFirstShownType() {
+        final long shown = expandedTypes & nonEmptyTypes;
+        return shown == 0 ? -1 : Long.numberOfTrailingZeros(shown);
+    }
+
+    /**
+     * @return last type with children shown or -1
+     */
+    int getLastShownType() {
+        final long shown = expandedTypes & nonEmptyTypes;
+        return shown == 0 ? -1 : 63 - Long.numberOfLeadingZeros(shown);
+    }
+
+    /**
+     * @return last type placed before the type given with children shown or
+     * -1
+     */
+    int getLastShownTypeBefore(final int childType) {
+        final long shown = expandedTypes & nonEmptyTypes & ((1L << childType) - 1);
+        return shown == 0 ? -1 : 63 - Long.numberOfLeadingZeros(shown);
+    }
+
+    /**
+     * Slot of the shown child following the one given, skipping the types
+     * which are collapsed.
+     *
+     * @param slot      slot of a child
+     * @param childType type of the child
+     * @return slot of the next shown child or -1
+     */
+    int nextShownSlot(final int slot, final int childType) {
+        if (slot + 1 < segmentEnd[childType] && isExpanded(childType)) {
+            return slot + 1;
+        }
+        final long later = expandedTypes & nonEmptyTypes & -(2L << childType);
+        return later == 0 || childType == 63 ? -1 : segmentStart(Long.numberOfTrailingZeros(later));
+    }
+
+    /**
+     * Rows of the children of the type, counted as if it was expanded.
+     *
+     * @param childType type of the children
+     * @return sum of row counts
+     */
+    int getSegmentRows(final int childType) {
+        return segmentRows[childType];
+    }
+
+    /**
+     * Rows of all expanded types.
+     */
+    int getShownRows() {
+        int rows = 0;
+        for (long shown = expandedTypes & nonEmptyTypes; shown != 0; shown &= shown - 1) {
+            rows += segmentRows[Long.numberOfTrailingZeros(shown)];
+        }
+        return rows;
+    }
+
+    /**
+     * Rows of the expanded types placed before the type.
+     */
+    int getShownRowsBefore(final int childType) {
+        int rows = 0;
+        final long before = (1L << childType) - 1;
+        for (long shown = expandedTypes & nonEmptyTypes & before; shown != 0; shown &= shown - 1) {
+            rows += segmentRows[Long.numberOfTrailingZeros(shown)];
+        }
+        return rows;
+    }
+
+    /**
+     * Records change of rows of the child at the slot.
+     *
+     * @param slot      slot of the child
+     * @param childType type of the child
+     * @param delta     change of its row count
+     */
+    void rowsChanged(final int slot, final int childType, final int delta) {
+        segmentRows[childType] += delta;
+        if (rowTreeValid) {
+            addToRowTree(cell(slot), delta);
+        }
+    }
+
+    /**
+     * Recounts the rows after row counts of many children changed at once.
+     */
+    void recountRows() {
+        Arrays.fill(segmentRows, 0);
+        for (final Object node : nodes) {
+            if (node != null) {
+                final InMemoryTreeNode<?> child = (InMemoryTreeNode<?>) node;
+                segmentRows[child.getNodeType()] += child.getRowCount();
+            }
+        }
+        rowTreeValid = false;
+    }
+
+    /**
+     * Rows of the children of the same segment placed before the slot.
+     *
+     * @param slot      slot of the child
+     * @param childType type of the child
+     * @return sum of row counts of preceding children of the type
+     */
+    int getRowsBefore(final int slot, final int childType) {
+        return prefixRows(cell(slot)) - prefixRows(cell(segmentStart(childType)));
+    }
+
+    /**
+     * Finds the child of the type whose rows contain the row given.
+     *
+     * @param childType type of the children
+     * @param row       row relative to the first child of the type, must be
+     *                  below {@link #getSegmentRows(int)}
+     * @return slot of the child
+     */
+    int slotOfRow(final int childType, final int row) {
+        ensureRowTree();
+        int cell = 0;
+        int remaining = prefixRows(cell(segmentStart(childType))) + row;
+        for (int step = Integer.highestOneBit(rowTree.length - 1); step > 0; step >>= 1) {
+            final int next = cell + step;
+            if (next < rowTree.length && rowTree[next] <= remaining) {
+                cell = next;
+                remaining -= rowTree[next];
+            }
+        }
+        // cells of the gap count no rows, so the cell found holds a child
+        return cell < gapStart ? cell : cell - (gapEnd - gapStart);
+    }
+
+    private int prefixRows(final int cell) {
+        ensureRowTree();
+        int rows = 0;
+        for (int i = cell; i > 0; i -= i & -i) {
+            rows += rowTree[i];
+        }
+        return rows;
+    }
+
+    private void addToRowTree(final int cell, final int delta) {
+        for (int i = cell + 1; i < rowTree.length; i += i & -i) {
+            rowTree[i] += delta;
+        }
+    }
+
+    private void ensureRowTree() {
+        if (rowTreeValid) {
+            return;
+        }
+        if (rowTree == null || rowTree.length != nodes.length + 1) {
+            rowTree = new int[nodes.length + 1];
+        } else {
+            Arrays.fill(rowTree, 0);
+        }
+        for (int i = 1; i < rowTree.length; i++) {
+            if (nodes[i - 1] != null) {
+                rowTree[i] += ((InMemoryTreeNode<?>) nodes[i - 1]).getRowCount();
+            }
+            final int parent = i + (i & -i);
+            if (parent < rowTree.length) {
+                rowTree[parent] += rowTree[i];
+            }
+        }
+        rowTreeValid = true;
+    }
+
+    /**
+     * Read-only view of the children of one type. The view is valid until
+     * the list changes, reading it afterwards throws
+     * {@link ConcurrentModificationException}.
+     *
+     * @param childType type of the children
+     * @return children of the type
+     */
+    List<InMemoryTreeNode<T>> segment(final int childType) {
+        return new Segment(childType);
+    }
+
+    /**
+     * Read-only view of the ids of the children of one type, valid until the
+     * list changes like {@link #segment(int)}.
+     *
+     * @param childType type of the children
+     * @return ids of the children
+     */
+    List<T> getIdList(final int childType) {
+        final Segment segment = new Segment(childType);
+        return new IdList(segment);
+    }
+
+    /**
+     * Copy of the order of the children of a list, sorted apart from it so
+     * that the comparator runs without the tree locked. Written back by
+     * {@link #applyOrder} as long as the list did not change meanwhile.
+     *
+     * @param <T> type of the identifier used by the tree
+     */
+    static final class Order<T> {
+        private final InMemoryTreeNode<T> owner;
+        private final ChildNodeList<T> list;
+        private final int expectedModCount;
+        private final Object[] nodes;
+        private final int[] segmentEnd;
+
+        Order(final InMemoryTreeNode<T> owner, final ChildNodeList<T> list) {
+            this.owner = owner;
+            this.list = list;
+            this.expectedModCount = list.modCount;
+            this.nodes = list.toArray();
+            this.segmentEnd = list.segmentEnd.clone();
+        }
+
+        /**
+         * @return node whose children are ordered
+         */
+        InMemoryTreeNode<T> getOwner() {
+            return owner;
+        }
+
+        int size() {
+            return nodes.length;
+        }
+
+        /**
+         * @return whether the list is unchanged since the copy was taken
+         */
+        boolean isCurrent() {
+            return list.modCount == expectedModCount;
+        }
+
+        /**
+         * Sorts the children of every type within their segment, stable.
+         *
+         * @param comparator order of the children
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void sort(final Comparator<? super InMemoryTreeNode<T>> comparator) {
+            int start = 0;
+            for (final int end : segmentEnd) {
+                if (end - start > 1) {
+                    Arrays.sort(nodes, start, end, (Comparator) comparator);
+                }
+                start = end;
+            }
+        }
+    }
+
+    private final class Segment extends AbstractList<InMemoryTreeNode<T>> implements RandomAccess {
+        private final int childType;
+        private final int expectedModCount = ChildNodeList.this.modCount;
+
+        Segment(final int childType) {
+            this.childType = childType;
+        }
+
+        @Override
+        public InMemoryTreeNode<T> get(final int index) {
+            checkForComodification();
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            return ChildNodeList.this.get(segmentStart(childType) + index);
+        }
+
+        @Override
+        public int size() {
+            checkForComodification();
+            return segmentSize(childType);
+        }
+
+        private void checkForComodification() {
+            if (ChildNodeList.this.modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    private final class IdList extends AbstractList<T> implements RandomAccess {
+        private final Segment segment;
+
+        IdList(final Segment segment) {
+            this.segment = segment;
+        }
+
+        @Override
+        public T get(final int index) {
+            return segment.get(index).getId();
+        }
+
+        @Override
+        public int size() {
+            return segment.size();
+        }
+    }
+}
@@ -0,0 +1,617 @@
+package com.treeviewlist;
+
+import android.database.DataSetObserver;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tree state manager for very large trees with a single child type. Instead
+ * of a node object per id the structure lives in the int columns of an
+ * {@link IntNodeStore}; ids and data are side tables indexed by handle and
+ * ids are found through a {@link HandleIndex}. A node costs a few ints plus
+ * the index slot, which keeps trees of a million nodes within the heap of a
+ * device.
+ * <p>
+ * Handles of removed nodes are reused, and once most of them are free the
+ * columns are compacted: live nodes are renumbered densely in pre-order, so
+ * traversals read the columns sequentially again. Visibility follows
+ * {@link InMemoryTreeStateManager}. Change listeners are only told that the
+ * tree changed. Snapshots are only built when asked for, completely instead
+ * of sharing unchanged subtrees, and only if the tree changed since the last.
+ *
+ * @param <T> type of the identifier used by the tree
+ */
+public class ColumnarTreeStateManager<T> implements TreeStateManager<T> {
+    private static final long serialVersionUID = 1L;
+
+    private final IntNodeStore store;
+    private final HandleIndex<T> index = new HandleIndex<T>();
+    private Object[] ids;
+    private Object[] data;
+    private int modCount = 0;
+    private transient List<DataSetObserver> observers = new ArrayList<DataSetObserver>();
+    private transient List<TreeChangeListener> changeListeners = new ArrayList<TreeChangeListener>();
+    private transient RefreshPolicy refreshPolicy = RefreshPolicy.frameAligned();
+    private transient int batchDepth = 0;
+    private transient boolean batchChanged = false;
+    private transient boolean refreshScheduled = false;
+    private transient List<T> visibleListCache = null;
+    private transient int visibleListModCount = -1;
+    private transient TreeSnapshot<T> snapshot;
+    private transient int snapshotModCount = -1;
+    private transient long snapshotVersion = 0;
+
+    private transient IntNodeStore.HandleVisitor releaser = newReleaser();
+    private transient Runnable refreshRunnable = newRefreshRunnable();
+
+    private IntNodeStore.HandleVisitor newReleaser() {
+        return new IntNodeStore.HandleVisitor() {
+            @Override
+            public void visit(final int handle) {
+                index.remove(ids[handle]);
+                ids[handle] = null;
+                data[handle] = null;
+            }
+        };
+    }
+
+    private Runnable newRefreshRunnable() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                dispatchRefresh();
+            }
+        };
+    }
+
+    public ColumnarTreeStateManager() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize number of nodes to allocate the columns for
+     */
+    public ColumnarTreeStateManager(final int expectedSize) {
+        store = new IntNodeStore(expectedSize + 1);
+        ids = new Object[Math.max(16, expectedSize + 1)];
+        data = new Object[ids.length];
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        // field initialisers do not run for a deserialised object, every
+        // transient field is default valued until set here
+        observers = new ArrayList<DataSetObserver>();
+        changeListeners = new ArrayList<TreeChangeListener>();
+        refreshPolicy = RefreshPolicy.frameAligned();
+        batchDepth = 0;
+        batchChanged = false;
+        refreshScheduled = false;
+        visibleListCache = null;
+        visibleListModCount = -1;
+        snapshot = null;
+        snapshotModCount = -1;
+        snapshotVersion = 0;
+        releaser = newReleaser();
+        refreshRunnable = newRefreshRunnable();
+    }
+
+    private int getHandleOrThrow(final T id) {
+        final int handle = index.get(id);
+        if (handle == -1) {
+            throw new NodeNotInTreeException(String.valueOf(id));
+        }
+        return handle;
+    }
+
+    private int getHandleOrThrowAllowRoot(final T id) {
+        return id == null ? IntNodeStore.ROOT : getHandleOrThrow(id);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T idOf(final int handle) {
+        return handle == IntNodeStore.NONE ? null : (T) ids[handle];
+    }
+
+    @Override
+    public synchronized Integer[] getHierarchyDescription(final T id) {
+        int handle = getHandleOrThrow(id);
+        final Integer[] hierarchy = new Integer[store.getLevel(handle) + 1];
+        for (int currentLevel = hierarchy.length - 1; currentLevel >= 0; currentLevel--) {
+            hierarchy[currentLevel] = store.getIndexInParent(handle);
+            handle = store.getParent(handle);
+        }
+        return hierarchy;
+    }
+
+    @Override
+    public synchronized int getLevel(final T id) {
+        return store.getLevel(getHandleOrThrow(id));
+    }
+
+    @Override
+    public synchronized TreeNodeInfo<T> getNodeInfo(final T id) {
+        return getNodeInfo(id, new TreeNodeInfo<T>());
+    }
+
+    @Override
+    public synchronized TreeNodeInfo<T> getNodeInfo(final T id, final TreeNodeInfo<T> info) {
+        final int handle = getHandleOrThrow(id);
+        final boolean withChildren = store.getChildCount(handle) > 0;
+        return info.set(id, store.getLevel(handle), withChildren,
+                store.isVisible(handle), withChildren && store.isExpanded(handle), data[handle]);
+    }
+
+    @Override
+    public synchronized List<T> getChildren(final T id) {
+        final int handle = getHandleOrThrowAllowRoot(id);
+        final List<T> children = new ArrayList<T>(store.getChildCount(handle));
+        for (int child = store.getFirstChild(handle); child != IntNodeStore.NONE;
+             child = store.getNextSibling(child)) {
+            children.add(idOf(child));
+        }
+        return children;
+    }
+
+    @Override
+    public synchronized T getParent(final T id) {
+        return idOf(store.getParent(getHandleOrThrow(id)));
+    }
+
+    @Override
+    public synchronized void addBeforeChild(final T parent, final T newChild, final T beforeChild) {
+        addBeforeChild(parent, newChild, beforeChild, null, false);
+    }
+
+    @Override
+    public synchronized void addBeforeChild(final T parent, final T newChild, final T beforeChild,
+                                            final Object nodeData, final boolean isShow) {
+        final int parentHandle = getHandleOrThrowAllowRoot(parent);
+        int before = index.get(beforeChild);
+        if (before == -1 || store.getParent(before) != parentHandle) {
+            before = store.getFirstChild(parentHandle);
+        }
+        add(parentHandle, newChild, before, nodeData, isShow);
+    }
+
+    @Override
+    public synchronized void addAfterChild(final T parent, final T newChild, final T afterChild) {
+        addAfterChild(parent, newChild, afterChild, null, false);
+    }
+
+    @Override
+    public synchronized void addAfterChild(final T parent, final T newChild, final T afterChild,
+                                           final Object nodeData, final boolean isShow) {
+        final int parentHandle = getHandleOrThrowAllowRoot(parent);
+        final int after = index.get(afterChild);
+        final int before = after == -1 || store.getParent(after) != parentHandle
+                ? IntNodeStore.NONE : store.getNextSibling(after);
+        add(parentHandle, newChild, before, nodeData, isShow);
+    }
+
+    private void add(final int parentHandle, final T id, final int before,
+                     final Object nodeData, final boolean isShow) {
+        final int existing = index.get(id);
+        if (existing != -1) {
+            throw new NodeAlreadyInTreeException(id.toString(), String.valueOf(ids[existing]));
+        }
+        if (store.getChildCount(parentHandle) == 0) {
+            store.setExpanded(parentHandle, isShow);
+        }
+        final int handle = store.allocate();
+        if (handle >= ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(ids.length * 2, handle + 1));
+            data = Arrays.copyOf(data, ids.length);
+        }
+        index.put(id, handle);
+        ids[handle] = id;
+        data[handle] = nodeData;
+        store.link(parentHandle, handle, before);
+        changed(store.isVisible(handle));
+    }
+
+    @Override
+    public synchronized void removeNodeRecursively(final T id) {
+        final int handle = getHandleOrThrowAllowRoot(id);
+        if (handle == IntNodeStore.ROOT) {
+            clear();
+            return;
+        }
+        final boolean visible = store.isVisible(handle);
+        store.unlink(handle);
+        store.freeSubtree(handle, releaser);
+        if (store.shouldCompact()) {
+            compact();
+        }
+        changed(visible);
+    }
+
+    @Override
+    public synchronized void moveSubtree(final T id, final T newParent, final T beforeSibling) {
+        final int handle = getHandleOrThrow(id);
+        final int parentHandle = getHandleOrThrowAllowRoot(newParent);
+        for (int n = parentHandle; n != IntNodeStore.NONE; n = store.getParent(n)) {
+            if (n == handle) {
+                throw new TreeConfigurationException("Trying to move " + id
+                        + " below its own subtree (" + newParent + ")");
+            }
+        }
+        int before = index.get(beforeSibling);
+        if (before == handle) {
+            return;
+        }
+        if (before == -1 || store.getParent(before) != parentHandle) {
+            before = IntNodeStore.NONE;
+        }
+        final boolean wasVisible = store.isVisible(handle);
+        final boolean wasExpanded = store.isExpanded(store.getParent(handle));
+        store.unlink(handle);
+        if (store.getChildCount(parentHandle) == 0) {
+            // the node follows its new siblings, an empty list takes the old state
+            store.setExpanded(parentHandle, wasExpanded);
+        }
+        store.link(parentHandle, handle, before);
+        changed(wasVisible || store.isVisible(handle));
+    }
+
+    @Override
+    public synchronized void expandDirectChildren(final T id) {
+        store.setExpanded(getHandleOrThrowAllowRoot(id), true);
+        changed(true);
+    }
+
+    @Override
+    public synchronized void expandEverythingBelow(final T id) {
+        store.expandAll(getHandleOrThrowAllowRoot(id));
+        changed(true);
+    }
+
+    @Override
+    public synchronized void collapseChildren(final T id) {
+        store.collapse(getHandleOrThrowAllowRoot(id));
+        changed(true);
+    }
+
+    @Override
+    public synchronized T getNextSibling(final T id) {
+        final int next = store.getNextSibling(getHandleOrThrow(id));
+        if (next == IntNodeStore.NONE || !store.isVisible(next)) {
+            return null;
+        }
+        return idOf(next);
+    }
+
+    @Override
+    public synchronized T getPreviousSibling(final T id) {
+        return idOf(store.getPreviousSibling(getHandleOrThrow(id)));
+    }
+
+    @Override
+    public synchronized boolean isInTree(final T id) {
+        return index.get(id) != -1;
+    }
+
+    @Override
+    public synchronized int getVisibleCount() {
+        return store.getVisibleCount();
+    }
+
+    @Override
+    public synchronized int getVisiblePosition(final T id) {
+        return store.getPosition(getHandleOrThrow(id));
+    }
+
+    @Override
+    public synchronized T getVisibleIdAt(final int position) {
+        if (position < 0 || position >= store.getVisibleCount()) {
+            return null;
+        }
+        return idOf(store.getHandleAt(position));
+    }
+
+    @Override
+    public synchronized List<T> getVisibleList() {
+        if (visibleListCache == null || visibleListModCount != modCount) {
+            final List<T> visible = new ArrayList<T>(store.getVisibleCount());
+            for (int node = store.getFirstChild(IntNodeStore.ROOT); node != IntNodeStore.NONE;
+                 node = nextVisibleHandle(node)) {
+                visible.add(idOf(node));
+            }
+            visibleListCache = Collections.unmodifiableList(visible);
+            visibleListModCount = modCount;
+        }
+        return visibleListCache;
+    }
+
+    @Override
+    public synchronized int getVisibleRange(final int firstPosition, final int count,
+                                            final VisibleRowConsumer<T> consumer) {
+        final int visibleCount = store.getVisibleCount();
+        final int end = (int) Math.min((long) firstPosition + count, visibleCount);
+        if (firstPosition < 0 || firstPosition >= end) {
+            return visibleCount;
+        }
+        final TreeNodeInfo<T> info = new TreeNodeInfo<T>();
+        int node = store.getHandleAt(firstPosition);
+        for (int position = firstPosition; position < end && node != IntNodeStore.NONE; position++) {
+            final boolean withChildren = store.getChildCount(node) > 0;
+            consumer.onRow(position, info.set(idOf(node), store.getLevel(node), withChildren,
+                    true, withChildren && store.isExpanded(node), data[node]));
+            node = nextVisibleHandle(node);
+        }
+        return visibleCount;
+    }
+
+    /**
+     * Node following a visible node in the visible list.
+     *
+     * @return handle or NONE after the last row
+     */
+    private int nextVisibleHandle(final int handle) {
+        if (store.isExpanded(handle) && store.getFirstChild(handle) != IntNodeStore.NONE) {
+            return store.getFirstChild(handle);
+        }
+        int node = handle;
+        while (node != IntNodeStore.ROOT && store.getNextSibling(node) == IntNodeStore.NONE) {
+            node = store.getParent(node);
+        }
+        return node == IntNodeStore.ROOT ? IntNodeStore.NONE : store.getNextSibling(node);
+    }
+
+    @Override
+    public synchronized void registerDataSetObserver(final DataSetObserver observer) {
+        if (!observers.contains(observer)) {
+            observers.add(observer);
+        }
+    }
+
+    @Override
+    public synchronized void unregisterDataSetObserver(final DataSetObserver observer) {
+        observers.remove(observer);
+    }
+
+    @Override
+    public synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    @Override
+    public synchronized void commit() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("commit() called without beginBatch()");
+        }
+        batchDepth--;
+        if (batchDepth > 0) {
+            return;
+        }
+        if (batchChanged) {
+            batchChanged = false;
+            scheduleRefresh();
+        }
+    }
+
+    @Override
+    public void runBatch(final Runnable mutations) {
+        beginBatch();
+        try {
+            mutations.run();
+        } finally {
+            commit();
+        }
+    }
+
+    /**
+     * Sets when refreshes are delivered. Frame-aligned by default.
+     *
+     * @param refreshPolicy policy to use
+     */
+    public synchronized void setRefreshPolicy(final RefreshPolicy refreshPolicy) {
+        this.refreshPolicy = refreshPolicy;
+    }
+
+    @Override
+    public synchronized void registerTreeChangeListener(final TreeChangeListener listener) {
+        if (!changeListeners.contains(listener)) {
+            changeListeners.add(listener);
+        }
+    }
+
+    @Override
+    public synchronized void unregisterTreeChangeListener(final TreeChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * Returns an immutable version of the tree. It is built from the columns
+     * here and only here, when the tree changed since the last one was taken,
+     * so a tree nobody takes snapshots of pays nothing for them. Within a
+     * batch the version from before the batch is returned if there is one,
+     * so only completed versions are seen.
+     *
+     * @return current snapshot
+     */
+    @Override
+    public synchronized TreeSnapshot<T> getSnapshot() {
+        final TreeSnapshot<T> current = snapshot;
+        if (current != null && (snapshotModCount == modCount || batchDepth > 0)) {
+            return current;
+        }
+        buildSnapshot();
+        return snapshot;
+    }
+
+    /**
+     * Builds the snapshot bottom-up from the columns.
+     */
+    private void buildSnapshot() {
+        final int[] order = new int[store.getLiveCount()];
+        int count = 0;
+        for (int node = IntNodeStore.ROOT; node != IntNodeStore.NONE;
+             node = store.nextInSubtree(IntNodeStore.ROOT, node)) {
+            order[count++] = node;
+        }
+        final TreeSnapshot.Node<T>[] nodes = TreeSnapshot.newNodeArray(store.getHighWater());
+        for (int i = count - 1; i >= 0; i--) {
+            final int handle = order[i];
+            final TreeSnapshot.Node<T>[] children = TreeSnapshot.newNodeArray(store.getChildCount(handle));
+            int j = 0;
+            for (int child = store.getFirstChild(handle); child != IntNodeStore.NONE;
+                 child = store.getNextSibling(child)) {
+                children[j++] = nodes[child];
+                nodes[child] = null;
+            }
+            final TreeSnapshot.Node<T>[][] types = TreeSnapshot.newChildArrays(1);
+            types[0] = children;
+            nodes[handle] = new TreeSnapshot.Node<T>(idOf(handle), data[handle],
+                    store.getLevel(handle), 0, types,
+                    new boolean[]{store.isExpanded(handle)});
+        }
+        snapshot = new TreeSnapshot<T>(nodes[IntNodeStore.ROOT], ++snapshotVersion);
+        snapshotModCount = modCount;
+    }
+
+    /**
+     * Renumbers the nodes densely after many removals and shrinks the
+     * columns. Called automatically once most handles are free.
+     */
+    public synchronized void compact() {
+        final int[] newHandles = store.compact();
+        final Object[] newIds = new Object[Math.max(16, store.getHighWater() + store.getHighWater() / 2)];
+        final Object[] newData = new Object[newIds.length];
+        for (int old = 0; old < newHandles.length; old++) {
+            final int handle = newHandles[old];
+            if (handle != IntNodeStore.NONE) {
+                newIds[handle] = ids[old];
+                newData[handle] = data[old];
+            }
+        }
+        ids = newIds;
+        data = newData;
+        index.remap(newHandles);
+    }
+
+    public synchronized Object getNodeData(final T id) {
+        return data[getHandleOrThrow(id)];
+    }
+
+    public synchronized void updateNodeData(final T id, final Object nodeData) {
+        final int handle = getHandleOrThrow(id);
+        data[handle] = nodeData;
+        changed(store.isVisible(handle));
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        store.clear();
+        index.clear();
+        Arrays.fill(ids, null);
+        Arrays.fill(data, null);
+        changed(true);
+    }
+
+    @Override
+    public synchronized void refresh() {
+        scheduleRefresh();
+    }
+
+    @Override
+    public synchronized boolean isLastChild(final T nodeID) {
+        return store.getNextSibling(getHandleOrThrow(nodeID)) == IntNodeStore.NONE;
+    }
+
+    @Override
+    public synchronized boolean isLastVisibleItem(final T nodeID) {
+        final int position = getVisiblePosition(nodeID);
+        return position != -1 && position == getVisibleCount() - 1;
+    }
+
+    @Override
+    public synchronized boolean isFirstVisibleItem(final T nodeID) {
+        return getVisiblePosition(nodeID) == 0;
+    }
+
+    @Override
+    public synchronized TreeNodeInfo<T> getPreviousVisibleItem(final T nodeID) {
+        return getPreviousVisibleItem(nodeID, new TreeNodeInfo<T>());
+    }
+
+    @Override
+    public synchronized TreeNodeInfo<T> getNextVisibleItem(final T nodeID) {
+        return getNextVisibleItem(nodeID, new TreeNodeInfo<T>());
+    }
+
+    @Override
+    public synchronized TreeNodeInfo<T> getPreviousVisibleItem(final T nodeID,
+                                                               final TreeNodeInfo<T> info) {
+        final int position = getVisiblePosition(nodeID);
+        return position > 0 ? getNodeInfo(getVisibleIdAt(position - 1), info) : null;
+    }
+
+    @Override
+    public synchronized TreeNodeInfo<T> getNextVisibleItem(final T nodeID,
+                                                           final TreeNodeInfo<T> info) {
+        final int position = getVisiblePosition(nodeID);
+        return position != -1 && position < getVisibleCount() - 1
+                ? getNodeInfo(getVisibleIdAt(position + 1), info) : null;
+    }
+
+    /**
+     * Counts the change and schedules a refresh if visible rows changed.
+     */
+    private void changed(final boolean visible) {
+        modCount++;
+        if (visible) {
+            scheduleRefresh();
+        }
+    }
+
+    private void scheduleRefresh() {
+        if (batchDepth > 0) {
+            batchChanged = true;
+            return;
+        }
+        if (refreshScheduled) {
+            return;
+        }
+        refreshScheduled = true;
+        refreshPolicy.schedule(refreshRunnable);
+    }
+
+    private void dispatchRefresh() {
+        final List<DataSetObserver> currentObservers;
+        final List<TreeChangeListener> currentListeners;
+        synchronized (this) {
+            refreshScheduled = false;
+            currentObservers = new ArrayList<DataSetObserver>(observers);
+            currentListeners = new ArrayList<TreeChangeListener>(changeListeners);
+        }
+        for (final TreeChangeListener listener : currentListeners) {
+            listener.onTreeChanged();
+        }
+        for (final DataSetObserver observer : currentObservers) {
+            observer.onChanged();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int node = store.nextInSubtree(IntNodeStore.ROOT, IntNodeStore.ROOT);
+             node != IntNodeStore.NONE; node = store.nextInSubtree(IntNodeStore.ROOT, node)) {
+            final char[] indent = new char[store.getLevel(node) * 4];
+            Arrays.fill(indent, ' ');
+            sb.append(indent).append(ids[node]).append('\n');
+        }
+        return sb.toString();
+    }
+}
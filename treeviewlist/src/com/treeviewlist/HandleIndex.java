@@ -0,0 +1,167 @@
+package com.treeviewlist;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Map from node ids to int handles of a column store. Same open addressing
+ * scheme as {@link NodeIndex}, with the handles kept in an int array, and
+ * serialized as its entries like it.
+ *
+ * @param <T> type of the identifier used by the tree
+ */
+final class HandleIndex<T> implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_CAPACITY = 16;
+
+    private transient Object[] keys = new Object[MIN_CAPACITY];
+    private transient int[] handles = new int[MIN_CAPACITY];
+    private transient int size;
+
+    /**
+     * @return the handle of the id or -1 if the id is not in the index
+     */
+    int get(final Object id) {
+        if (id == null) {
+            return -1;
+        }
+        final Object[] k = keys;
+        final int mask = k.length - 1;
+        for (int i = slot(id, mask); ; i = (i + 1) & mask) {
+            final Object key = k[i];
+            if (key == null) {
+                return -1;
+            }
+            if (key == id || key.equals(id)) {
+                return handles[i];
+            }
+        }
+    }
+
+    void put(final T id, final int handle) {
+        if (id == null) {
+            throw new NullPointerException("Node id can not be null");
+        }
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        final int mask = keys.length - 1;
+        int i = slot(id, mask);
+        for (Object key = keys[i]; key != null; key = keys[i]) {
+            if (key == id || key.equals(id)) {
+                handles[i] = handle;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = id;
+        handles[i] = handle;
+        size++;
+    }
+
+    void remove(final Object id) {
+        if (id == null) {
+            return;
+        }
+        final int mask = keys.length - 1;
+        int i = slot(id, mask);
+        for (Object key = keys[i]; ; key = keys[i]) {
+            if (key == null) {
+                return;
+            }
+            if (key == id || key.equals(id)) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        int hole = i;
+        for (int j = (hole + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            final int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                handles[hole] = handles[j];
+                hole = j;
+            }
+        }
+        keys[hole] = null;
+        size--;
+    }
+
+    /**
+     * Rewrites every handle through the map produced by a compaction.
+     *
+     * @param newHandles new handle by old handle
+     */
+    void remap(final int[] newHandles) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                handles[i] = newHandles[handles[i]];
+            }
+        }
+    }
+
+    void clear() {
+        keys = new Object[MIN_CAPACITY];
+        handles = new int[MIN_CAPACITY];
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void resize(final int capacity) {
+        final Object[] oldKeys = keys;
+        final int[] oldHandles = handles;
+        keys = new Object[capacity];
+        handles = new int[capacity];
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == null) {
+                continue;
+            }
+            int i = slot(oldKeys[j], mask);
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            handles[i] = oldHandles[j];
+        }
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                out.writeObject(keys[i]);
+                out.writeInt(handles[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        final int count = in.readInt();
+        int capacity = MIN_CAPACITY;
+        while (capacity < count * 2) {
+            capacity *= 2;
+        }
+        keys = new Object[capacity];
+        handles = new int[capacity];
+        size = 0;
+        for (int i = 0; i < count; i++) {
+            final T id = (T) in.readObject();
+            put(id, in.readInt());
+        }
+    }
+
+    private static int slot(final Object key, final int mask) {
+        final int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -1,54 +1,126 @@
 package com.treeviewlist;
 
 import java.io.Serializable;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 /**
  * Node. It is package protected so that it cannot be used outside.
+ * <p>
+ * Nodes are threaded in visible order by previous/next row links, kept up to
+ * date by every change of the structure or of the expanded state, so the
+ * neighbours of a visible row are found in O(1). Every node belongs to one
+ * linked sequence: the rows of the whole tree for visible nodes, otherwise
+ * the rows of the collapsed child list it is hidden in, ready to be linked
+ * in as a whole once the list is expanded. Ends of a sequence are null.
+ * <p>
+ * Every node also carries the labels of entering and leaving it in a walk of
+ * the whole tree (an Euler tour): a node is an ancestor of another exactly
+ * when its labels enclose the labels of the other. Labels are spread with
+ * gaps, so a new subtree usually fits between its neighbours; when a gap is
+ * used up, the labels around it are spread again (order maintenance). A
+ * jump pointer to an ancestor (Myers' skew-binary scheme) finds the lowest
+ * common ancestor in O(log depth).
+ * <p>
+ * The number of descendants and the height of the subtree are kept on every
+ * node and updated along the ancestor path when children are added or
+ * removed, as are the values of the {@link SubtreeReducer}s of the manager.
  *
  * @param <T> type of the identifier used by the tree
  */
 public class InMemoryTreeNode<T> implements Serializable {
     private static final long serialVersionUID = 1L;
+    /**
+     * Stands for the child list of a node without children. Only read, never
+     * changed.
+     */
+    @SuppressWarnings("rawtypes")
+    private static final ChildNodeList NO_CHILDREN = new ChildNodeList(ChildNodeList.MAX_CHILD_TYPES);
+    /**
+     * Labels of nodes are in [0, 2^LABEL_BITS), the top sentinel encloses
+     * them with -1 and 2^LABEL_BITS. Leaves room for differences of labels
+     * without overflow.
+     */
+    private static final int LABEL_BITS = 62;
     private final T id;
-    private final T parent;
-    private final int level;
-    private boolean visible = true;
+    private T parent;
+    private int level;
     private final int childTypeCount;
-    private final List<InMemoryTreeNode<T>>[] childrens;
-    private final List<InMemoryTreeNode<T>> children = new LinkedList<InMemoryTreeNode<T>>();
-    private List<T>[] childIdListCache = null;
+    private ChildNodeList<T> children; // allocated with the first child
     private Object data;
     private int nodeType = 0;
+    private InMemoryTreeNode<T> parentNode;
+    private int cell = -1; // in the array of the parent's child list
+    private int childRowCount = 0;
+    private transient TreeSnapshot.Node<T> snapshot;
+    // rebuilt by relinkRows() after deserialization, see the class comment
+    private transient InMemoryTreeNode<T> previousRow;
+    private transient InMemoryTreeNode<T> nextRow;
+    private long enterLabel;
+    private long exitLabel;
+    private InMemoryTreeNode<T> jump;
+    private int descendantCount;
+    private int subtreeHeight;
+    // values of the reducers of the manager, recomputed when registered
+    private transient Object[] aggregates;
 
     public InMemoryTreeNode(final T id, final T parent, final int level,
                             final boolean visible) {
         this(id, parent, level, visible, 1, 0);
     }
 
+    /**
+     * Creates a detached node. Visibility is not stored in the node, it is
+     * derived from the expanded state of the ancestors once the node is added,
+     * so the visible flag is kept only for compatibility. The child list is
+     * allocated when the first child is added, so leaves carry no containers.
+     */
     public InMemoryTreeNode(final T id, final T parent, final int level,
                             final boolean visible, final int childTypeCount, final int nodeType) {
         super();
+        if (childTypeCount < 1 || childTypeCount > ChildNodeList.MAX_CHILD_TYPES) {
+            throw new TreeConfigurationException("Number of child types must be between 1 and "
+                    + ChildNodeList.MAX_CHILD_TYPES + ", was " + childTypeCount);
+        }
         this.id = id;
         this.parent = parent;
         this.level = level;
-        this.visible = visible;
         this.childTypeCount = childTypeCount;
         this.nodeType = nodeType;
-        this.childrens = new List[childTypeCount];
-        this.childIdListCache = new List[childTypeCount];
-        initChildrens();
+        if (id == null) {
+            enterLabel = -1;
+            exitLabel = 1L << LABEL_BITS;
+            jump = this;
+        }
     }
 
-    private void initChildrens() {
-        for (int i = 0; i < childTypeCount; i++) {
-            if (i == 0) {
-                childrens[i] = children;
-                continue;
-            }
-            childrens[i] = new LinkedList<InMemoryTreeNode<T>>();
+    /**
+     * Child list for reading, the shared empty list if no child was added yet.
+     */
+    @SuppressWarnings("unchecked")
+    private ChildNodeList<T> list() {
+        final ChildNodeList<T> list = children;
+        return list == null ? NO_CHILDREN : list;
+    }
+
+    /**
+     * Whether this node allocated its own child list.
+     */
+    boolean hasChildList() {
+        return children != null;
+    }
+
+    /**
+     * Child list for changing, allocated on first use.
+     */
+    private ChildNodeList<T> listForUpdate() {
+        if (children == null) {
+            children = new ChildNodeList<T>(childTypeCount);
         }
+        return children;
     }
 
     public int indexOf(final T id) {
@@ -60,40 +132,989 @@ public class InMemoryTreeNode<T> implements Serializable {
     }
 
     /**
-     * Cache is built lasily only if needed. The cache is cleaned on any
-     * structure change for that node!).
+     * Returns index of the direct child in its child type list in O(1).
+     *
+     * @param child child node
+     * @return index of the child or -1 if it is not a child of this node
+     */
+    public int indexOf(final InMemoryTreeNode<T> child) {
+        if (child == null || child.parentNode != this) {
+            return -1;
+        }
+        return child.getIndexInParent();
+    }
+
+    /**
+     * Returns ids of children. The list is a view of the children, so no copy
+     * is made; it throws {@link java.util.ConcurrentModificationException}
+     * once the children change. Take a copy to keep the ids across changes.
      *
      * @return list of ids of children
      */
-    public synchronized List<T> getChildIdList() {
+    public List<T> getChildIdList() {
         return getChildIdList(0);
     }
 
-    public synchronized List<T> getChildIdList(int childType) {
-        if (childIdListCache[childType] != null) {
-            return childIdListCache[childType];
+    public List<T> getChildIdList(int childType) {
+        final ChildNodeList<T> list = list();
+        return list == NO_CHILDREN ? Collections.<T>emptyList() : list.getIdList(childType);
+    }
+
+    /**
+     * A node is visible when the child lists leading to it from the top are
+     * all expanded. Costs O(depth).
+     *
+     * @return whether the node is in the visible list
+     */
+    public boolean isVisible() {
+        InMemoryTreeNode<T> node = this;
+        while (node.parentNode != null) {
+            if (!node.parentNode.list().isExpanded(node.nodeType)) {
+                return false;
+            }
+            node = node.parentNode;
+        }
+        return node.id == null;
+    }
+
+    /**
+     * Whether the children of the type are shown below this node, whatever
+     * the visibility of the node itself.
+     *
+     * @param childType type of the children
+     * @return the expanded flag of the child list
+     */
+    public boolean isExpanded(final int childType) {
+        return list().isExpanded(childType);
+    }
+
+    /**
+     * Expands or collapses the children of one type. Only the flag of this
+     * node changes, expanded lists below keep their state, so the cost is
+     * O(depth) whatever the size of the subtree.
+     *
+     * @param childType type of the children
+     * @param expanded  whether to show the children
+     */
+    synchronized void setExpanded(final int childType, final boolean expanded) {
+        if (list().isExpanded(childType) == expanded) {
+            return;
         }
-        childIdListCache[childType] = new LinkedList<T>();
-        for (final InMemoryTreeNode<T> n : childrens[childType]) {
-            childIdListCache[childType].add(n.getId());
+        final ChildNodeList<T> list = listForUpdate();
+        if (list.segmentSize(childType) > 0) {
+            final InMemoryTreeNode<T> first = list.get(list.segmentStart(childType));
+            final InMemoryTreeNode<T> last = list.get(list.segmentEnd(childType) - 1).getLastRow();
+            if (expanded) {
+                linkRowsAfter(rowBeforeSegment(list, childType), first, last);
+            } else {
+                unlinkRows(first, last);
+            }
         }
-        return childIdListCache[childType];
+        list.setExpanded(childType, expanded);
+        markChanged();
+        final int rows = list.getSegmentRows(childType);
+        addChildRows(expanded ? rows : -rows);
     }
 
-    public boolean isVisible() {
-        return visible;
+    /**
+     * Collapses the children of the type together with every expanded list
+     * below them, so that expanding again shows a single level. Lists which
+     * are already collapsed are not entered, the cost is proportional to the
+     * rows that disappear.
+     *
+     * @param childType type of the children
+     * @param hidden    receives the nodes which disappeared, may be null
+     */
+    synchronized void collapse(final int childType, final List<InMemoryTreeNode<T>> hidden) {
+        final ChildNodeList<T> list = list();
+        if (!list.isExpanded(childType)) {
+            return;
+        }
+        setExpanded(childType, false);
+        final ArrayDeque<InMemoryTreeNode<T>> stack = new ArrayDeque<InMemoryTreeNode<T>>();
+        final List<ChildNodeList<T>> changedLists = new ArrayList<ChildNodeList<T>>();
+        changedLists.add(list);
+        // every hidden node ends up collapsed, so its list links only siblings
+        chainSegment(list, childType);
+        for (int i = list.segmentStart(childType); i < list.segmentEnd(childType); i++) {
+            stack.push(list.get(i));
+        }
+        while (!stack.isEmpty()) {
+            final InMemoryTreeNode<T> child = stack.pop();
+            if (hidden != null) {
+                hidden.add(child);
+            }
+            child.snapshot = null; // the parent is already marked
+            final ChildNodeList<T> childList = child.children;
+            if (childList != null) {
+                for (long shown = childList.collapseAll(); shown != 0; shown &= shown - 1) {
+                    final int type = Long.numberOfTrailingZeros(shown);
+                    chainSegment(childList, type);
+                    for (int i = childList.segmentStart(type); i < childList.segmentEnd(type); i++) {
+                        stack.push(childList.get(i));
+                    }
+                }
+                changedLists.add(childList);
+            }
+            child.childRowCount = 0;
+        }
+        for (final ChildNodeList<T> changed : changedLists) {
+            changed.recountRows();
+        }
+    }
+
+    /**
+     * Expands the children of the type and every child list below them. Row
+     * counts are recomputed bottom-up and propagated to the ancestors once.
+     *
+     * @param childType type of the children
+     */
+    synchronized void expandAll(final int childType) {
+        final int rowsBefore = childRowCount;
+        final ChildNodeList<T> list = list();
+        if (list.segmentSize(childType) > 0 && list.isExpanded(childType)) {
+            unlinkRows(list.get(list.segmentStart(childType)),
+                    list.get(list.segmentEnd(childType) - 1).getLastRow());
+        }
+        final ArrayDeque<InMemoryTreeNode<T>> stack = new ArrayDeque<InMemoryTreeNode<T>>();
+        final ArrayDeque<InMemoryTreeNode<T>> postOrder = new ArrayDeque<InMemoryTreeNode<T>>();
+        for (int i = list.segmentStart(childType); i < list.segmentEnd(childType); i++) {
+            stack.push(list.get(i));
+        }
+        while (!stack.isEmpty()) {
+            final InMemoryTreeNode<T> node = stack.pop();
+            postOrder.push(node);
+            final ChildNodeList<T> nodeList = node.list();
+            for (int i = 0; i < nodeList.size(); i++) {
+                stack.push(nodeList.get(i));
+            }
+        }
+        // children are popped before their parents
+        while (!postOrder.isEmpty()) {
+            final InMemoryTreeNode<T> node = postOrder.pop();
+            final ChildNodeList<T> nodeList = node.children;
+            if (nodeList != null) {
+                // the first child added decides the state of empty types anyway
+                nodeList.expandNonEmpty();
+                nodeList.recountRows();
+                node.childRowCount = nodeList.getShownRows();
+            }
+            node.snapshot = null;
+        }
+        if (list.segmentSize(childType) > 0) {
+            final ChildNodeList<T> own = listForUpdate();
+            own.recountRows();
+            own.setExpanded(childType, true);
+            final InMemoryTreeNode<T> last = linkSegment(own, childType, stack);
+            linkRowsAfter(rowBeforeSegment(own, childType), own.get(own.segmentStart(childType)), last);
+        }
+        markChanged();
+        addChildRows(list().getShownRows() - rowsBefore);
+    }
+
+    /**
+     * Number of rows the subtree of this node occupies when the node itself
+     * is shown: the node (unless it is the top sentinel) plus the rows of its
+     * expanded child lists. Whether the node is actually shown depends on its
+     * ancestors, see {@link #isVisible()}.
+     *
+     * @return rows of the subtree
+     */
+    public int getRowCount() {
+        return (id == null ? 0 : 1) + childRowCount;
+    }
+
+    /**
+     * Rows of all expanded children, maintained even while this node is
+     * hidden so that showing it again is O(depth).
+     *
+     * @return rows below this node
+     */
+    public int getChildRowCount() {
+        return childRowCount;
+    }
+
+    /**
+     * Visible rows of the children of one child type.
+     *
+     * @param childType type of the children
+     * @return rows of the children of the type, 0 if they are collapsed
+     */
+    public int getChildRowCount(final int childType) {
+        final ChildNodeList<T> list = list();
+        return list.isExpanded(childType) ? list.getSegmentRows(childType) : 0;
+    }
+
+    /**
+     * Counts visible rows of the children placed before the given child, in
+     * visible order (child types first, then position in the type list).
+     *
+     * @param child direct child of this node
+     * @return number of rows between this node and the child
+     */
+    public synchronized int getRowsBefore(final InMemoryTreeNode<T> child) {
+        final ChildNodeList<T> list = list();
+        final int rows = list.getShownRowsBefore(child.nodeType);
+        return list.isExpanded(child.nodeType)
+                ? rows + list.getRowsBefore(list.slotOf(child), child.nodeType) : rows;
+    }
+
+    /**
+     * Finds the child whose rows contain the row given.
+     *
+     * @param row row counted from the first row below this node, must be
+     *            lower than {@link #getChildRowCount()}
+     * @return child node or null if row is out of range
+     */
+    public synchronized InMemoryTreeNode<T> getChildAtRow(final int row) {
+        final ChildNodeList<T> list = list();
+        int remaining = row;
+        for (long shown = list.getShownTypes(); shown != 0; shown &= shown - 1) {
+            final int type = Long.numberOfTrailingZeros(shown);
+            final int rows = list.getSegmentRows(type);
+            if (remaining < rows) {
+                return list.get(list.slotOfRow(type, remaining));
+            }
+            remaining -= rows;
+        }
+        return null;
+    }
+
+    /**
+     * Row shown before this one in the visible list, the top sentinel before
+     * the first row. Only meaningful while the node is visible. O(1).
+     *
+     * @return previous row or null
+     */
+    InMemoryTreeNode<T> getPreviousRow() {
+        return previousRow;
+    }
+
+    /**
+     * Row shown after this one in the visible list, for the top sentinel the
+     * first row. Only meaningful while the node is visible. O(1).
+     *
+     * @return next row or null after the last row
+     */
+    InMemoryTreeNode<T> getNextRow() {
+        return nextRow;
+    }
+
+    /**
+     * Last row of the subtree of this node as it is shown when the node is:
+     * the node itself if none of its children are shown. O(depth).
+     *
+     * @return last row of the subtree
+     */
+    InMemoryTreeNode<T> getLastRow() {
+        InMemoryTreeNode<T> node = this;
+        while (true) {
+            final ChildNodeList<T> list = node.list();
+            final int type = list.getLastShownType();
+            if (type == -1) {
+                return node;
+            }
+            node = list.get(list.segmentEnd(type) - 1);
+        }
+    }
+
+    /**
+     * Row after which the children of the type are shown: this node or the
+     * last row of the previous type whose children are shown.
+     */
+    private InMemoryTreeNode<T> rowBeforeSegment(final ChildNodeList<T> list, final int childType) {
+        final int type = list.getLastShownTypeBefore(childType);
+        return type == -1 ? this : list.get(list.segmentEnd(type) - 1).getLastRow();
+    }
+
+    /**
+     * Links the rows from first to last, already linked to each other, into
+     * the sequence of the row given right after it.
+     */
+    private static <T> void linkRowsAfter(final InMemoryTreeNode<T> previous,
+                                          final InMemoryTreeNode<T> first,
+                                          final InMemoryTreeNode<T> last) {
+        final InMemoryTreeNode<T> next = previous.nextRow;
+        previous.nextRow = first;
+        first.previousRow = previous;
+        last.nextRow = next;
+        if (next != null) {
+            next.previousRow = last;
+        }
+    }
+
+    /**
+     * Cuts the rows from first to last out of their sequence, keeping the
+     * links between them.
+     */
+    private static <T> void unlinkRows(final InMemoryTreeNode<T> first,
+                                       final InMemoryTreeNode<T> last) {
+        final InMemoryTreeNode<T> previous = first.previousRow;
+        final InMemoryTreeNode<T> next = last.nextRow;
+        if (previous != null) {
+            previous.nextRow = next;
+        }
+        if (next != null) {
+            next.previousRow = previous;
+        }
+        first.previousRow = null;
+        last.nextRow = null;
+    }
+
+    /**
+     * Links a child just added to the list into the sequence of its segment,
+     * together with the rows shown below it.
+     */
+    private void linkChild(final ChildNodeList<T> list, final InMemoryTreeNode<T> child) {
+        final InMemoryTreeNode<T> last = child.getLastRow();
+        final int type = child.nodeType;
+        final int slot = list.slotOf(child);
+        if (slot > list.segmentStart(type)) {
+            linkRowsAfter(list.get(slot - 1).getLastRow(), child, last);
+        } else if (list.isExpanded(type)) {
+            linkRowsAfter(rowBeforeSegment(list, type), child, last);
+        } else {
+            final InMemoryTreeNode<T> next = slot + 1 < list.segmentEnd(type)
+                    ? list.get(slot + 1) : null;
+            child.previousRow = null;
+            last.nextRow = next;
+            if (next != null) {
+                next.previousRow = last;
+            }
+        }
+    }
+
+    /**
+     * Links the children of the segment one after another, for children
+     * which show no rows below them.
+     */
+    private static <T> void chainSegment(final ChildNodeList<T> list, final int childType) {
+        InMemoryTreeNode<T> previous = null;
+        for (int i = list.segmentStart(childType); i < list.segmentEnd(childType); i++) {
+            final InMemoryTreeNode<T> node = list.get(i);
+            node.previousRow = previous;
+            if (previous != null) {
+                previous.nextRow = node;
+            }
+            previous = node;
+        }
+        if (previous != null) {
+            previous.nextRow = null;
+        }
+    }
+
+    /**
+     * Links the children of the segment with all rows shown below them in
+     * visible order, as a sequence of its own.
+     *
+     * @return last row of the segment
+     */
+    private static <T> InMemoryTreeNode<T> linkSegment(final ChildNodeList<T> list, final int childType,
+                                                       final ArrayDeque<InMemoryTreeNode<T>> stack) {
+        InMemoryTreeNode<T> previous = null;
+        for (int i = list.segmentStart(childType); i < list.segmentEnd(childType); i++) {
+            previous = linkSubtree(previous, list.get(i), stack);
+        }
+        return previous;
+    }
+
+    /**
+     * Links the node and the rows shown below it in visible order after the
+     * row given (null to start a sequence).
+     *
+     * @return last row linked
+     */
+    private static <T> InMemoryTreeNode<T> linkSubtree(final InMemoryTreeNode<T> previous,
+                                                       final InMemoryTreeNode<T> node,
+                                                       final ArrayDeque<InMemoryTreeNode<T>> stack) {
+        InMemoryTreeNode<T> last = previous;
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            final InMemoryTreeNode<T> current = stack.pop();
+            current.previousRow = last;
+            if (last != null) {
+                last.nextRow = current;
+            }
+            last = current;
+            final ChildNodeList<T> list = current.list();
+            for (int i = list.size() - 1; i >= 0; i--) {
+                final InMemoryTreeNode<T> child = list.get(i);
+                if (list.isExpanded(child.nodeType)) {
+                    stack.push(child);
+                }
+            }
+        }
+        last.nextRow = null;
+        return last;
+    }
+
+    /**
+     * Links the rows of this subtree from scratch, used after
+     * deserialization which does not keep the links.
+     */
+    void relinkRows() {
+        final ArrayDeque<InMemoryTreeNode<T>> stack = new ArrayDeque<InMemoryTreeNode<T>>();
+        final ArrayDeque<InMemoryTreeNode<T>> nodes = new ArrayDeque<InMemoryTreeNode<T>>();
+        linkSubtree(null, this, stack);
+        nodes.push(this);
+        while (!nodes.isEmpty()) {
+            final InMemoryTreeNode<T> node = nodes.pop();
+            final ChildNodeList<T> list = node.list();
+            for (int type = 0; type < node.childTypeCount; type++) {
+                if (list.segmentSize(type) > 0 && !list.isExpanded(type)) {
+                    linkSegment(list, type, stack);
+                }
+            }
+            for (int i = 0; i < list.size(); i++) {
+                nodes.push(list.get(i));
+            }
+        }
+    }
+
+    /**
+     * Whether this node is a proper ancestor of the node given, both in the
+     * same tree. O(1).
+     *
+     * @param node other node
+     * @return true if the node is in the subtree of this one
+     */
+    public boolean isAncestorOf(final InMemoryTreeNode<T> node) {
+        return enterLabel < node.enterLabel && node.exitLabel < exitLabel;
+    }
+
+    /**
+     * Whether the node given is this node or one of its descendants. O(1).
+     *
+     * @param node other node in the same tree
+     * @return true if the node is in the subtree of this one
+     */
+    public boolean containsInSubtree(final InMemoryTreeNode<T> node) {
+        return enterLabel <= node.enterLabel && node.exitLabel <= exitLabel;
+    }
+
+    /**
+     * Deepest node whose subtree contains both this node and the one given,
+     * the top sentinel if there is no other. Jumps up as long as the subtree
+     * of the jump target does not contain the other node, O(log depth).
+     *
+     * @param node other node in the same tree
+     * @return lowest common ancestor, possibly one of the two nodes
+     */
+    public InMemoryTreeNode<T> getLowestCommonAncestor(final InMemoryTreeNode<T> node) {
+        InMemoryTreeNode<T> ancestor = this;
+        while (!ancestor.containsInSubtree(node)) {
+            ancestor = ancestor.jump.containsInSubtree(node) ? ancestor.parentNode : ancestor.jump;
+        }
+        return ancestor;
+    }
+
+    /**
+     * Sets the jump pointer from the one of the parent: it skips twice as
+     * far as the parent's when the two jumps above the parent are equally
+     * long, otherwise it points to the parent.
+     */
+    private void updateJump() {
+        final InMemoryTreeNode<T> up = parentNode.jump;
+        if (parentNode.level - up.level == up.level - up.jump.level) {
+            jump = up.jump;
+        } else {
+            jump = parentNode;
+        }
+    }
+
+    /**
+     * Node following the one given in pre-order within the subtree of the
+     * top node, walking the child links.
+     */
+    private static <T> InMemoryTreeNode<T> nextInSubtree(final InMemoryTreeNode<T> top,
+                                                         final InMemoryTreeNode<T> node) {
+        if (node.getChildCount() > 0) {
+            return node.getChildAt(0);
+        }
+        for (InMemoryTreeNode<T> current = node; current != top; current = current.parentNode) {
+            final InMemoryTreeNode<T> next = current.parentNode.getNextChild(current);
+            if (next != null) {
+                return next;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Labels a child just linked into this node, with its whole subtree, and
+     * refreshes the jump pointers of the subtree. The enter and exit labels of
+     * the subtree (its tokens in the Euler tour) are spread between the labels
+     * of the neighbouring tokens. Without room enough the tokens around are
+     * relabelled, see {@link #relabelAround}.
+     */
+    private void labelChild(final InMemoryTreeNode<T> child) {
+        for (InMemoryTreeNode<T> node = child; node != null; node = nextInSubtree(child, node)) {
+            node.updateJump();
+        }
+        final int labels = 2 * (child.descendantCount + 1);
+        final InMemoryTreeNode<T> previous = getPreviousChild(child);
+        final InMemoryTreeNode<T> next = getNextChild(child);
+        final TourToken<T> before = previous == null
+                ? new TourToken<T>(this, false) : new TourToken<T>(previous, true);
+        final TourToken<T> after = next == null
+                ? new TourToken<T>(this, true) : new TourToken<T>(next, false);
+        final long low = before.label();
+        final long step = (after.label() - low) / (labels + 1);
+        if (step > 0) {
+            final TourToken<T> token = new TourToken<T>(child, false);
+            for (int i = 1; i <= labels; i++, token.moveToNext()) {
+                token.setLabel(low + step * i);
+            }
+        } else {
+            relabelAround(before, after, labels);
+        }
+    }
+
+    /**
+     * Order maintenance after Bender et al.: finds the smallest aligned label
+     * range around the insertion point whose tokens, counting the new ones,
+     * are sparse enough (at most (2 / 1.4)^i tokens in a range of 2^i labels)
+     * and spreads the tokens of the range evenly over it. The density bound
+     * gets tighter with the size of the range, which makes the relabelling
+     * amortized O(log n) per token whatever the shape of the tree.
+     *
+     * @param before token preceding the new tokens
+     * @param after  token following the new tokens
+     * @param added  number of new tokens between them
+     */
+    private static <T> void relabelAround(final TourToken<T> before, final TourToken<T> after,
+                                          final int added) {
+        final long anchor = Math.max(0, before.label());
+        // the range grows around the new tokens, left stops at the first
+        // token below it, right at the first token above it
+        final TourToken<T> left = before.copy();
+        final TourToken<T> right = after.copy();
+        long count = added;
+        double capacity = 1;
+        for (int bits = 1; bits <= LABEL_BITS; bits++) {
+            capacity *= 2 / 1.4;
+            final long size = 1L << bits;
+            final long rangeLow = anchor & -size;
+            // the labels of the top sentinel stop both walks
+            while (left.label() >= rangeLow) {
+                count++;
+                left.moveToPrevious();
+            }
+            while (right.label() < rangeLow + size) {
+                count++;
+                right.moveToNext();
+            }
+            if (count < capacity || bits == LABEL_BITS) {
+                final long step = size / (count + 1);
+                left.moveToNext();
+                for (long i = 1; i <= count; i++, left.moveToNext()) {
+                    left.setLabel(rangeLow + step * i);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the order of the children, to be sorted without holding the tree
+     * by {@link InMemoryTreeStateManager#sortChildren}.
+     *
+     * @return copy of the child order, null if no child was added yet
+     */
+    ChildNodeList.Order<T> copyChildOrder() {
+        final ChildNodeList<T> list = children;
+        return list == null ? null : new ChildNodeList.Order<T>(this, list);
+    }
+
+    /**
+     * Puts the children in the sorted order of the copy. Touches only the
+     * child list and the cells of the children; rows and labels are put in
+     * order afterwards by {@link #reorderChildren}.
+     *
+     * @param order sorted copy taken by {@link #copyChildOrder()}
+     */
+    void applyChildOrder(final ChildNodeList.Order<T> order) {
+        listForUpdate().applyOrder(order);
+        snapshot = null;
+    }
+
+    /**
+     * Reorders the children of this node, or of its whole subtree, by
+     * running the reordering given, then fits the row links and the labels to
+     * the new order. The rows around the subtree and the set of labels it uses
+     * stay, the labels are handed out again in the new order of the tour.
+     * This happens even when the reordering fails half way, so the tree stays
+     * consistent in whatever order it was left.
+     *
+     * @param sortLists reorders the child lists, see {@link #applyChildOrder}
+     * @param recursive whether lists below the children are sorted as well
+     */
+    synchronized void reorderChildren(final Runnable sortLists, final boolean recursive) {
+        markChanged();
+        final InMemoryTreeNode<T> after = getLastRow().nextRow;
+        final long[] labels = new long[2 * descendantCount];
+        if (labels.length == 0) {
+            return;
+        }
+        final TourToken<T> token = new TourToken<T>(list().get(0), false);
+        for (int i = 0; i < labels.length; i++, token.moveToNext()) {
+            labels[i] = token.label();
+        }
+        try {
+            sortLists.run();
+        } finally {
+            fitToOrder(after, labels, recursive);
+        }
     }
 
-    public void setVisible(final boolean visible) {
-        this.visible = visible;
+    private void fitToOrder(final InMemoryTreeNode<T> after, final long[] labels,
+                            final boolean recursive) {
+        if (recursive) {
+            final InMemoryTreeNode<T> before = previousRow;
+            relinkRows();
+            previousRow = before;
+            final InMemoryTreeNode<T> last = getLastRow();
+            last.nextRow = after;
+            if (after != null) {
+                after.previousRow = last;
+            }
+        } else {
+            relinkChildBlocks(after);
+        }
+        final TourToken<T> relabel = new TourToken<T>(list().get(0), false);
+        for (int i = 0; i < labels.length; i++, relabel.moveToNext()) {
+            relabel.setLabel(labels[i]);
+            if (recursive) {
+                relabel.node.snapshot = null;
+            }
+        }
+    }
+
+    /**
+     * Links the children, each with the rows shown below it, in the order of
+     * the child list: after this node up to the row given for shown types,
+     * as sequences of their own for collapsed ones.
+     */
+    private void relinkChildBlocks(final InMemoryTreeNode<T> after) {
+        final ChildNodeList<T> list = list();
+        InMemoryTreeNode<T> last = this;
+        for (long shown = list.getShownTypes(); shown != 0; shown &= shown - 1) {
+            final int type = Long.numberOfTrailingZeros(shown);
+            for (int i = list.segmentStart(type); i < list.segmentEnd(type); i++) {
+                final InMemoryTreeNode<T> child = list.get(i);
+                last.nextRow = child;
+                child.previousRow = last;
+                last = child.getLastRow();
+            }
+        }
+        last.nextRow = after;
+        if (after != null) {
+            after.previousRow = last;
+        }
+        for (int type = 0; type < childTypeCount; type++) {
+            if (list.segmentSize(type) == 0 || list.isExpanded(type)) {
+                continue;
+            }
+            InMemoryTreeNode<T> previous = null;
+            for (int i = list.segmentStart(type); i < list.segmentEnd(type); i++) {
+                final InMemoryTreeNode<T> child = list.get(i);
+                child.previousRow = previous;
+                if (previous != null) {
+                    previous.nextRow = child;
+                }
+                previous = child.getLastRow();
+            }
+            previous.nextRow = null;
+        }
+    }
+
+    /**
+     * Position in the Euler tour of the tree: entering or leaving a node.
+     * Moves along the child links in O(1).
+     */
+    private static final class TourToken<T> {
+        private InMemoryTreeNode<T> node;
+        private boolean exit;
+
+        TourToken(final InMemoryTreeNode<T> node, final boolean exit) {
+            this.node = node;
+            this.exit = exit;
+        }
+
+        TourToken<T> copy() {
+            return new TourToken<T>(node, exit);
+        }
+
+        long label() {
+            return exit ? node.exitLabel : node.enterLabel;
+        }
+
+        void setLabel(final long label) {
+            if (exit) {
+                node.exitLabel = label;
+            } else {
+                node.enterLabel = label;
+            }
+        }
+
+        void moveToNext() {
+            if (!exit) {
+                if (node.getChildCount() > 0) {
+                    node = node.getChildAt(0);
+                } else {
+                    exit = true;
+                }
+                return;
+            }
+            final InMemoryTreeNode<T> next = node.parentNode.getNextChild(node);
+            if (next != null) {
+                node = next;
+                exit = false;
+            } else {
+                node = node.parentNode;
+            }
+        }
+
+        void moveToPrevious() {
+            if (exit) {
+                if (node.getChildCount() > 0) {
+                    node = node.getChildAt(node.getChildCount() - 1);
+                } else {
+                    exit = false;
+                }
+                return;
+            }
+            final InMemoryTreeNode<T> previous = node.parentNode.getPreviousChild(node);
+            if (previous != null) {
+                node = previous;
+                exit = true;
+            } else {
+                node = node.parentNode;
+            }
+        }
+    }
+
+    /**
+     * Number of nodes below this one. O(1).
+     *
+     * @return count of all descendants
+     */
+    public int getDescendantCount() {
+        return descendantCount;
+    }
+
+    /**
+     * Number of levels below this node, 0 for a leaf. O(1).
+     *
+     * @return height of the subtree
+     */
+    public int getSubtreeHeight() {
+        return subtreeHeight;
+    }
+
+    /**
+     * Accounts a subtree just linked as a child in the counts and heights of
+     * this node and its ancestors.
+     */
+    private void subtreeAdded(final InMemoryTreeNode<T> child) {
+        final int count = child.descendantCount + 1;
+        int height = child.subtreeHeight + 1;
+        for (InMemoryTreeNode<T> node = this; node != null; node = node.parentNode, height++) {
+            node.descendantCount += count;
+            if (node.subtreeHeight < height) {
+                node.subtreeHeight = height;
+            }
+        }
+    }
+
+    /**
+     * Accounts nodes just removed below this node. Heights are recomputed
+     * from the children of each ancestor until one does not change.
+     */
+    private void subtreeRemoved(final int count) {
+        boolean heightChanged = true;
+        for (InMemoryTreeNode<T> node = this; node != null; node = node.parentNode) {
+            node.descendantCount -= count;
+            if (heightChanged) {
+                final int height = node.childHeight();
+                heightChanged = height != node.subtreeHeight;
+                node.subtreeHeight = height;
+            }
+        }
+    }
+
+    private int childHeight() {
+        final ChildNodeList<T> list = list();
+        int height = 0;
+        for (int i = 0; i < list.size(); i++) {
+            height = Math.max(height, list.get(i).subtreeHeight + 1);
+        }
+        return height;
+    }
+
+    /**
+     * Recomputes the values of the reducers for this node from its data and
+     * the values of its children, which have to be up to date. The top
+     * sentinel has no data, its value combines the children only.
+     *
+     * @param reducers reducers of the manager
+     */
+    @SuppressWarnings("unchecked")
+    void reduce(final SubtreeReducer<?>[] reducers) {
+        if (aggregates == null || aggregates.length != reducers.length) {
+            aggregates = new Object[reducers.length];
+        }
+        final ChildNodeList<T> list = list();
+        for (int r = 0; r < reducers.length; r++) {
+            final SubtreeReducer<Object> reducer = (SubtreeReducer<Object>) reducers[r];
+            int i = 0;
+            Object value;
+            if (id != null) {
+                value = reducer.map(data);
+            } else if (list.isEmpty()) {
+                value = null;
+            } else {
+                value = list.get(i++).aggregates[r];
+            }
+            for (; i < list.size(); i++) {
+                value = reducer.combine(value, list.get(i).aggregates[r]);
+            }
+            aggregates[r] = value;
+        }
+    }
+
+    /**
+     * @param index index of the reducer in the manager
+     * @return value of the reducer for the subtree
+     */
+    Object getAggregate(final int index) {
+        return aggregates == null ? null : aggregates[index];
+    }
+
+    void adjustChildRowCount(final InMemoryTreeNode<T> changedChild, final int delta) {
+        InMemoryTreeNode<T> node = this;
+        InMemoryTreeNode<T> child = changedChild;
+        while (node != null && delta != 0) {
+            final ChildNodeList<T> list = node.list();
+            list.rowsChanged(list.slotOf(child), child.nodeType, delta);
+            if (!list.isExpanded(child.nodeType)) {
+                break; // rows of collapsed children are not shown above
+            }
+            node.childRowCount += delta;
+            child = node;
+            node = node.parentNode;
+        }
+    }
+
+    public InMemoryTreeNode<T> getParentNode() {
+        return parentNode;
+    }
+
+    /**
+     * Index of the node in the child list of its type.
+     *
+     * @return index or -1 if the node is detached
+     */
+    public int getIndexInParent() {
+        if (parentNode == null) {
+            return -1;
+        }
+        final ChildNodeList<T> list = parentNode.list();
+        return list.slotOf(this) - list.segmentStart(nodeType);
+    }
+
+    int getCell() {
+        return cell;
+    }
+
+    void setCell(final int cell) {
+        this.cell = cell;
+    }
+
+    /**
+     * Returns the child following the one given, continuing with the first
+     * child of the next non-empty child type. O(1).
+     *
+     * @param child direct child of this node
+     * @return next child or null if the child is the last one
+     */
+    public InMemoryTreeNode<T> getNextChild(final InMemoryTreeNode<T> child) {
+        final ChildNodeList<T> list = list();
+        final int slot = list.slotOf(child);
+        return slot + 1 < list.size() ? list.get(slot + 1) : null;
+    }
+
+    /**
+     * Returns the child preceding the one given, continuing with the last
+     * child of the previous non-empty child type. O(1).
+     *
+     * @param child direct child of this node
+     * @return previous child or null if the child is the first one
+     */
+    public InMemoryTreeNode<T> getPreviousChild(final InMemoryTreeNode<T> child) {
+        final ChildNodeList<T> list = list();
+        final int slot = list.slotOf(child);
+        return slot > 0 ? list.get(slot - 1) : null;
+    }
+
+    /**
+     * First child of the first type whose children are shown. O(1).
+     *
+     * @return the child or null if no children are shown
+     */
+    public InMemoryTreeNode<T> getFirstShownChild() {
+        final ChildNodeList<T> list = list();
+        final int type = list.getFirstShownType();
+        return type == -1 ? null : list.get(list.segmentStart(type));
+    }
+
+    /**
+     * Child shown after the one given below this node, continuing with the
+     * next type whose children are shown. O(1).
+     *
+     * @param child direct child of this node
+     * @return next shown child or null
+     */
+    public InMemoryTreeNode<T> getNextShownChild(final InMemoryTreeNode<T> child) {
+        final ChildNodeList<T> list = list();
+        final int next = list.nextShownSlot(list.slotOf(child), child.nodeType);
+        return next == -1 ? null : list.get(next);
+    }
+
+    /**
+     * Whether the child is the first one of the first type whose children are
+     * shown, or of the first type if none are shown. O(1).
+     *
+     * @param child direct child of this node
+     * @return true if the child opens the shown children
+     */
+    public boolean isFirstShownChild(final InMemoryTreeNode<T> child) {
+        final ChildNodeList<T> list = list();
+        final int type = Math.max(0, list.getFirstShownType());
+        return child.parentNode == this && child.nodeType == type
+                && list.slotOf(child) == list.segmentStart(type);
+    }
+
+    /**
+     * Whether the child is the last one of the last type whose children are
+     * shown, or of the first type if none are shown. O(1).
+     *
+     * @param child direct child of this node
+     * @return true if the child closes the shown children
+     */
+    public boolean isLastShownChild(final InMemoryTreeNode<T> child) {
+        final ChildNodeList<T> list = list();
+        final int type = Math.max(0, list.getLastShownType());
+        return child.parentNode == this && child.nodeType == type
+                && list.slotOf(child) == list.segmentEnd(type) - 1;
     }
 
     public int getChildrenListSize() {
-        return children.size();
+        return getChildrenListSize(0);
     }
 
     public int getChildrenListSize(int childType) {
-        return childrens[childType].size();
+        return list().segmentSize(childType);
     }
 
     public synchronized InMemoryTreeNode<T> add(final int index, final T child,
@@ -103,26 +1124,68 @@ public class InMemoryTreeNode<T> implements Serializable {
 
     public synchronized InMemoryTreeNode<T> add(final int index, final T child,
                                                 final boolean visible, Object data) {
-        childIdListCache[0] = null;
         // Note! top levell children are always visible (!)
         final InMemoryTreeNode<T> newNode = new InMemoryTreeNode<T>(child,
                 getId(), getLevel() + 1, getId() == null ? true : visible);
-        newNode.setData(data);
-        children.add(index, newNode);
-        return newNode;
+        return addNode(index, newNode, visible, data);
     }
 
     public synchronized InMemoryTreeNode<T> add(final int index, final T child,
                                                 final boolean visible, Object data, int childType) {
-        childIdListCache[childType] = null;
         // Note! top levell children are always visible (!)
         final InMemoryTreeNode<T> newNode = new InMemoryTreeNode<T>(child,
                 getId(), getLevel() + 1, getId() == null ? true : visible, childTypeCount, childType);
+        return addNode(index, newNode, visible, data);
+    }
+
+    private InMemoryTreeNode<T> addNode(final int index, final InMemoryTreeNode<T> newNode,
+                                        final boolean visible, final Object data) {
         newNode.setData(data);
-        childrens[childType].add(index, newNode);
+        newNode.parentNode = this;
+        final ChildNodeList<T> list = listForUpdate();
+        initExpanded(list, newNode.nodeType, visible);
+        list.add(newNode.nodeType, index, newNode);
+        linkChild(list, newNode);
+        subtreeAdded(newNode);
+        labelChild(newNode);
+        markChanged();
+        childRowsAdded(list, newNode.nodeType, newNode.getRowCount());
         return newNode;
     }
 
+    /**
+     * Appends a finished child while a detached subtree is built, see
+     * {@link TreeBuilder}. Only the counts of this node are updated, nothing
+     * is propagated or labelled: rows are linked by {@link #relinkRows()}
+     * once the subtree is complete, labels when it is inserted into a tree.
+     *
+     * @param child    detached node whose children are all appended
+     * @param expanded whether the children are shown, decided by the first
+     *                 child of the type
+     */
+    void appendBuilt(final InMemoryTreeNode<T> child, final boolean expanded) {
+        final ChildNodeList<T> list = listForUpdate();
+        initExpanded(list, child.nodeType, expanded);
+        child.parentNode = this;
+        list.add(child.nodeType, list.segmentSize(child.nodeType), child);
+        descendantCount += child.descendantCount + 1;
+        subtreeHeight = Math.max(subtreeHeight, child.subtreeHeight + 1);
+        if (list.isExpanded(child.nodeType)) {
+            childRowCount += child.getRowCount();
+        }
+    }
+
+    /**
+     * The first child added to a type decides whether the type is expanded,
+     * later children follow it. Children of the top sentinel are always shown.
+     */
+    private void initExpanded(final ChildNodeList<T> list, final int childType,
+                              final boolean visible) {
+        if (list.segmentSize(childType) == 0) {
+            list.setExpanded(childType, getId() == null || visible);
+        }
+    }
+
     /**
      * Note. This method should technically return unmodifiable collection, but
      * for performance reason on small devices we do not do it.
@@ -130,80 +1193,289 @@ public class InMemoryTreeNode<T> implements Serializable {
      * @return children list
      */
     public List<InMemoryTreeNode<T>> getChildren() {
-        return children;
+        return getChildren(0);
     }
 
+    /**
+     * Children of one type, a view of its segment of the child list, valid
+     * until the children change.
+     *
+     * @param childType type of the children
+     * @return children of the type or null if the type does not exist
+     */
     public List<InMemoryTreeNode<T>> getChildren(int childType) {
         if (childType >= childTypeCount || childType < 0) {
             return null;
         }
-        return childrens[childType];
+        final ChildNodeList<T> list = list();
+        return list == NO_CHILDREN ? Collections.<InMemoryTreeNode<T>>emptyList()
+                : list.segment(childType);
+    }
+
+    /**
+     * Number of children of all types.
+     *
+     * @return child count
+     */
+    public int getChildCount() {
+        return list().size();
+    }
+
+    /**
+     * Child at the slot of the list of all children, ordered by type and then
+     * by position within the type.
+     *
+     * @param slot slot of the child
+     * @return the child
+     */
+    public InMemoryTreeNode<T> getChildAt(final int slot) {
+        return list().get(slot);
+    }
+
+    /**
+     * All children in visible order, types first and then position within the
+     * type.
+     *
+     * @return read-only list of all children
+     */
+    public List<InMemoryTreeNode<T>> getAllChildren() {
+        return Collections.unmodifiableList(list());
     }
 
     public synchronized void clearChildren() {
-        for (int i = 0; i < childTypeCount; i++) {
-            childrens[i].clear();
-            childIdListCache[i] = null;
+        final ChildNodeList<T> list = children;
+        final InMemoryTreeNode<T> firstShown = getFirstShownChild();
+        if (firstShown != null) {
+            unlinkRows(firstShown, getLastRow());
         }
+        if (list != null) {
+            for (final InMemoryTreeNode<T> n : list) {
+                n.parentNode = null;
+                n.cell = -1;
+            }
+            list.clear();
+        }
+        subtreeRemoved(descendantCount);
+        markChanged();
+        addChildRows(-childRowCount);
+    }
 
+    /**
+     * Drops the children of a node which is itself being discarded, without
+     * propagating row counts to ancestors.
+     */
+    synchronized void discardChildren() {
+        children = null;
+        childRowCount = 0;
     }
 
     public synchronized void removeChild(final T child) {
-        final int childIndex = indexOf(child);
-        if (childIndex != -1) {
-            children.remove(childIndex);
-            childIdListCache[0] = null;
-        }
+        removeChild(child, 0);
     }
 
     public synchronized void removeChild(final T child, int childType) {
         final int childIndex = indexOf(child, childType);
         if (childIndex != -1) {
-            childrens[childType].remove(childIndex);
-            childIdListCache[childType] = null;
+            removeChild(list().get(list().segmentStart(childType) + childIndex));
         }
     }
 
-    public synchronized boolean hasChildren() {
-        for (int i = 0; i < childTypeCount; i++) {
-            if (getChildren(i).size() > 0) {
-                return true;
+    /**
+     * Removes the direct child in O(1) lookup (plus moving the gap of the list).
+     *
+     * @param child child node
+     */
+    public synchronized void removeChild(final InMemoryTreeNode<T> child) {
+        if (child == null || child.parentNode != this) {
+            return;
+        }
+        final int rows = child.getRowCount();
+        final ChildNodeList<T> list = list();
+        unlinkRows(child, child.getLastRow());
+        list.remove(list.slotOf(child));
+        child.parentNode = null;
+        subtreeRemoved(child.descendantCount + 1);
+        markChanged();
+        childRowsAdded(list, child.nodeType, -rows);
+    }
+
+    /**
+     * Links an existing, detached node (with its whole subtree) as a child of
+     * this node. Levels of the subtree are shifted only when they change.
+     *
+     * @param index index in the child type list of the node
+     * @param child detached node
+     */
+    synchronized void insertChild(final int index, final InMemoryTreeNode<T> child) {
+        linkDetached(index, child);
+        labelChild(child);
+    }
+
+    /**
+     * Appends complete detached subtrees as the last children of their type
+     * to this top sentinel, then spreads the labels of the whole tree evenly
+     * in one pass instead of fitting every subtree in on its own.
+     *
+     * @param roots roots of the subtrees
+     */
+    synchronized void appendSubtrees(final List<InMemoryTreeNode<T>> roots) {
+        for (final InMemoryTreeNode<T> root : roots) {
+            linkDetached(list().segmentSize(root.nodeType), root);
+            for (InMemoryTreeNode<T> node = root; node != null; node = nextInSubtree(root, node)) {
+                node.updateJump();
             }
         }
-        return false;
+        final long tokens = 2L * descendantCount;
+        if (tokens == 0) {
+            return;
+        }
+        final long step = (1L << LABEL_BITS) / (tokens + 1);
+        final TourToken<T> token = new TourToken<T>(list().get(0), false);
+        for (long i = 1; i <= tokens; i++, token.moveToNext()) {
+            token.setLabel(step * i);
+        }
     }
 
-    public synchronized boolean hasChildren(int childType) {
-        if (getChildren(childType) != null && getChildren(childType).size() > 0) {
-            return true;
+    private void linkDetached(final int index, final InMemoryTreeNode<T> child) {
+        child.parentNode = this;
+        child.parent = getId();
+        child.shiftLevels(getLevel() + 1 - child.getLevel());
+        child.snapshot = null;
+        final ChildNodeList<T> list = listForUpdate();
+        list.add(child.nodeType, index, child);
+        linkChild(list, child);
+        subtreeAdded(child);
+        markChanged();
+        childRowsAdded(list, child.nodeType, child.getRowCount());
+    }
+
+    private void shiftLevels(final int delta) {
+        if (delta == 0) {
+            return;
+        }
+        final ArrayDeque<InMemoryTreeNode<T>> stack = new ArrayDeque<InMemoryTreeNode<T>>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            final InMemoryTreeNode<T> node = stack.pop();
+            node.level += delta;
+            node.snapshot = null;
+            final ChildNodeList<T> list = node.list();
+            for (int i = 0; i < list.size(); i++) {
+                stack.push(list.get(i));
+            }
         }
-        return false;
     }
 
-    public synchronized boolean hasChildrenExpand() {
-        for (int i = 0; i < childTypeCount; i++) {
-            List<InMemoryTreeNode<T>> childList = getChildren(i);
-            if (childList != null && childList.size() > 0 && childList.get(0).isVisible()) {
-                return true;
+    /**
+     * Drops the snapshot of this node and its ancestors, they are copied again
+     * when the next snapshot is built. Stops at the first node already marked,
+     * its ancestors are marked too.
+     */
+    private void markChanged() {
+        for (InMemoryTreeNode<T> node = this; node != null && node.snapshot != null;
+             node = node.parentNode) {
+            node.snapshot = null;
+        }
+    }
+
+    /**
+     * Builds the immutable copy of this subtree, reusing the copies of the
+     * subtrees which did not change since the previous call.
+     *
+     * @return immutable copy of the node
+     */
+    @SuppressWarnings("unchecked")
+    synchronized TreeSnapshot.Node<T> buildSnapshot() {
+        if (snapshot != null) {
+            return snapshot;
+        }
+        // changed nodes in pre-order, built in reverse so children come first
+        final ArrayDeque<InMemoryTreeNode<T>> stack = new ArrayDeque<InMemoryTreeNode<T>>();
+        final ArrayDeque<InMemoryTreeNode<T>> changed = new ArrayDeque<InMemoryTreeNode<T>>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            final InMemoryTreeNode<T> node = stack.pop();
+            changed.push(node);
+            final ChildNodeList<T> list = node.list();
+            for (int i = 0; i < list.size(); i++) {
+                final InMemoryTreeNode<T> child = list.get(i);
+                if (child.snapshot == null) {
+                    stack.push(child);
+                }
             }
         }
-        return false;
+        while (!changed.isEmpty()) {
+            final InMemoryTreeNode<T> node = changed.pop();
+            final ChildNodeList<T> list = node.list();
+            final TreeSnapshot.Node<T>[][] copies = TreeSnapshot.newChildArrays(node.childTypeCount);
+            final boolean[] expanded = new boolean[node.childTypeCount];
+            for (int t = 0; t < node.childTypeCount; t++) {
+                final int start = list.segmentStart(t);
+                final TreeSnapshot.Node<T>[] copy = TreeSnapshot.newNodeArray(list.segmentSize(t));
+                for (int i = 0; i < copy.length; i++) {
+                    copy[i] = list.get(start + i).snapshot;
+                }
+                copies[t] = copy;
+                expanded[t] = list.isExpanded(t);
+            }
+            node.snapshot = new TreeSnapshot.Node<T>(node.id, node.data, node.level,
+                    node.nodeType, copies, expanded);
+        }
+        return snapshot;
     }
 
-    public synchronized boolean isChildrenExpand(int childType) {
-        List<InMemoryTreeNode<T>> childList = getChildren(childType);
-        if (childList != null && childList.size() > 0 && childList.get(0).isVisible()) {
-            return true;
+    /**
+     * Accounts rows of a child change already recorded in the list itself.
+     */
+    private void childRowsAdded(final ChildNodeList<T> list, final int childType, final int rows) {
+        if (list.isExpanded(childType)) {
+            addChildRows(rows);
+        }
+    }
+
+    private void addChildRows(final int rows) {
+        childRowCount += rows;
+        if (rows != 0 && parentNode != null) {
+            parentNode.adjustChildRowCount(this, rows);
+        }
+    }
+
+    public synchronized boolean hasChildren() {
+        return !list().isEmpty();
+    }
+
+    public synchronized boolean hasChildren(int childType) {
+        if (childType >= childTypeCount || childType < 0) {
+            return false;
         }
-        return false;
+        return list().segmentSize(childType) > 0;
+    }
+
+    /**
+     * Whether children of any type are shown below this node. O(1).
+     *
+     * @return true if some children exist and are expanded
+     */
+    public synchronized boolean hasChildrenExpand() {
+        return list().getFirstShownType() != -1;
+    }
+
+    /**
+     * Whether there are children of the type shown below this node. O(1).
+     *
+     * @param childType type of the children
+     * @return true if the children exist and are expanded
+     */
+    public synchronized boolean isChildrenExpand(int childType) {
+        final ChildNodeList<T> list = list();
+        return list.segmentSize(childType) > 0 && list.isExpanded(childType);
     }
 
     @Override
     public String toString() {
         return "InMemoryTreeNode [id=" + getId() + ", parent=" + getParent()
-                + ", level=" + getLevel() + ", visible=" + visible
-                + ", children=" + children + ", childIdListCache="
-                + childIdListCache[0] + "]";
+                + ", level=" + getLevel() + ", expanded=" + list().isExpanded(0)
+                + ", children=" + getChildren(0) + "]";
     }
 
     public T getId() {
@@ -224,11 +1496,16 @@ public class InMemoryTreeNode<T> implements Serializable {
 
     public void setData(Object data) {
         this.data = data;
+        markChanged();
     }
 
     public int getNodeType() {
         return nodeType;
     }
 
+    public int getChildTypeCount() {
+        return childTypeCount;
+    }
+
 
 }
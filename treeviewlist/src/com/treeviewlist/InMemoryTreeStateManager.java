@@ -1,20 +1,27 @@
 package com.treeviewlist;
 
 import android.database.DataSetObserver;
-import android.os.Handler;
 import android.util.Log;
 import android.widget.BaseAdapter;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * In-memory manager of tree state.
@@ -25,39 +32,315 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
     private static final String TAG = InMemoryTreeStateManager.class
             .getSimpleName();
     private static final long serialVersionUID = 1L;
-    private final Map<T, InMemoryTreeNode<T>> allNodes = new ConcurrentSkipListMap<T, InMemoryTreeNode<T>>();
+    private static final int MAX_PENDING_CHANGES = 64;
+    // below this many children a parallel sort costs more than it saves
+    private static final int PARALLEL_SORT_CHILDREN = 8192;
+    private static final int SORT_TASKS_PER_PROCESSOR = 4;
+    // sorts outside the lock which lost to a concurrent edit this often are
+    // finished under the lock
+    private static final int MAX_SORT_ATTEMPTS = 3;
+    private static final SubtreeReducer<?>[] NO_REDUCERS = new SubtreeReducer<?>[0];
+    private final NodeIndex<T> allNodes = new NodeIndex<T>();
     private final InMemoryTreeNode<T> topSentinel;
     private transient List<T> visibleListCache = null; // lasy initialised
     private transient List<T> unmodifiableVisibleList = null;
     private boolean visibleByDefault = true;
-    private final transient Set<DataSetObserver> observers = new HashSet<DataSetObserver>();
+    private transient Set<DataSetObserver> observers = new HashSet<DataSetObserver>();
     private Map<T, Integer> sizeMap;
     private HashMap<String, String> expandMap;
-    private Handler handler = new Handler();
     private int childTypeCount = 1;
     private DataTreeRefresher dataTreeRefresher;
     private BaseAdapter currentAdapter;
+    private transient int batchDepth = 0;
+    private transient boolean batchChanged = false;
+    private transient RefreshPolicy refreshPolicy = RefreshPolicy.frameAligned();
+    private transient boolean refreshScheduled = false;
+    private transient boolean dispatching = false;
+    private transient boolean dispatchAgain = false;
+    private transient List<TreeChangeListener> changeListeners = new ArrayList<TreeChangeListener>();
+    private transient List<RowChange> pendingChanges = new ArrayList<RowChange>();
+    private transient boolean pendingTreeChange = false;
+    private transient volatile TreeSnapshot<T> snapshot;
+    private transient long snapshotVersion = 0;
+    private transient volatile TreeSnapshot<T> dispatchedSnapshot;
+    private transient ArrayDeque<InMemoryTreeNode<T>> traversalStack;
+    private transient SubtreeReducer<?>[] reducers = NO_REDUCERS;
+
+    private transient Runnable refreshRunnable = newRefreshRunnable();
+
+    private Runnable newRefreshRunnable() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                dispatchRefresh();
+            }
+        };
+    }
 
+    /**
+     * Notifies that everything might have changed.
+     */
     public synchronized void internalDataSetChanged() {
-        final Map<T, InMemoryTreeNode<T>> nodeMap = getNodeMap();
-        final List<T> visibleList = new ArrayList<T>(nodeMap.keySet());
+        recordTreeChange();
+        scheduleRefresh();
+    }
 
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
+    private void scheduleRefresh() {
+        if (batchDepth > 0) {
+            batchChanged = true;
+            return;
+        }
+        if (refreshScheduled) {
+            return;
+        }
+        refreshScheduled = true;
+        refreshPolicy.schedule(refreshRunnable);
+    }
+
+    /**
+     * Delivers the pending refresh. The visible node map is taken only now, so
+     * all mutations since the refresh was scheduled end up in one snapshot.
+     * Refreshes which only changed data of rows are delivered to change
+     * listeners alone when there are any, so rows are rebound in place. A
+     * data tree refresher which is itself a change listener gets the row
+     * changes instead of a new node map, unless the whole tree changed.
+     * <p>
+     * A refresh requested by an observer or a listener while the changes are
+     * delivered follows once they all are, so no listener gets changes of
+     * the next refresh in the middle of the current one.
+     */
+    private void dispatchRefresh() {
+        synchronized (this) {
+            if (dispatching) {
+                dispatchAgain = true;
+                return;
+            }
+            dispatching = true;
+        }
+        try {
+            boolean again;
+            do {
+                deliverRefresh();
+                synchronized (this) {
+                    again = dispatchAgain;
+                    dispatchAgain = false;
+                }
+            } while (again);
+        } finally {
+            synchronized (this) {
+                dispatching = false;
+            }
+        }
+    }
+
+    private void deliverRefresh() {
+        final Map<T, InMemoryTreeNode<T>> nodeMap;
+        final List<T> visibleList;
+        final List<DataSetObserver> currentObservers;
+        final List<TreeChangeListener> currentListeners;
+        final List<RowChange> changes;
+        final boolean treeChanged;
+        final boolean structureChanged;
+        final boolean refresherFollowsChanges;
+        synchronized (this) {
+            refreshScheduled = false;
+            publishSnapshot();
+            dispatchedSnapshot = snapshot;
+            if (!pendingTreeChange && pendingChanges.isEmpty() && !changeListeners.isEmpty()) {
+                return; // nothing visible changed
+            }
+            changes = pendingChanges;
+            treeChanged = pendingTreeChange;
+            pendingChanges = new ArrayList<RowChange>();
+            pendingTreeChange = false;
+            structureChanged = treeChanged || changeListeners.isEmpty() || hasStructureChange(changes);
+            currentListeners = new ArrayList<TreeChangeListener>(changeListeners);
+            // a refresher listening to the rows applies the changes itself
+            refresherFollowsChanges = !treeChanged && changeListeners.contains(dataTreeRefresher);
+            if (structureChanged) {
                 visibleListCache = null;
                 unmodifiableVisibleList = null;
-                if (dataTreeRefresher != null) { // do refresh listview data here
-                    dataTreeRefresher.refreshSourceData(nodeMap, visibleList);
-                }
-                for (final DataSetObserver observer : observers) {
-                    observer.onChanged();
-                }
-                if (currentAdapter != null) {
-                    currentAdapter.notifyDataSetChanged();
-                }
+                nodeMap = dataTreeRefresher == null || refresherFollowsChanges ? null : getNodeMap();
+                visibleList = nodeMap == null ? null : new ArrayList<T>(nodeMap.keySet());
+                currentObservers = new ArrayList<DataSetObserver>(observers);
+            } else {
+                nodeMap = null;
+                visibleList = null;
+                currentObservers = null;
+            }
+        }
+        if (structureChanged && dataTreeRefresher != null && !refresherFollowsChanges) { // do refresh listview data here
+            dataTreeRefresher.refreshSourceData(nodeMap, visibleList);
+        }
+        for (final TreeChangeListener listener : currentListeners) {
+            if (treeChanged) {
+                listener.onTreeChanged();
+                continue;
+            }
+            for (final RowChange change : changes) {
+                change.deliver(listener);
+            }
+        }
+        if (!structureChanged) {
+            return;
+        }
+        for (final DataSetObserver observer : currentObservers) {
+            observer.onChanged();
+        }
+        if (currentAdapter != null) {
+            currentAdapter.notifyDataSetChanged();
+        }
+    }
+
+    private static boolean hasStructureChange(final List<RowChange> changes) {
+        for (final RowChange change : changes) {
+            if (change.kind != RowChange.CHANGED) {
+                return true;
             }
-        });
+        }
+        return false;
+    }
+
+    private void recordChange(final int kind, final int position, final int toPosition,
+                              final int count) {
+        if (changeListeners.isEmpty() || pendingTreeChange || position < 0 || count <= 0) {
+            return;
+        }
+        if (pendingChanges.size() >= MAX_PENDING_CHANGES) {
+            recordTreeChange();
+            return;
+        }
+        pendingChanges.add(new RowChange(kind, position, toPosition, count));
+    }
+
+    private void recordTreeChange() {
+        pendingTreeChange = true;
+        pendingChanges.clear();
+    }
+
+    /**
+     * Records that the rows below the node (or below one child type of it)
+     * were replaced. Called after the change with the row count from before.
+     */
+    private void recordChildRowsReplaced(final InMemoryTreeNode<T> node, final int childType,
+                                         final int rowsBefore, final int rowsAfter) {
+        if (rowsBefore == rowsAfter) {
+            return;
+        }
+        int start = getFirstRowBelow(node);
+        if (start == -1) {
+            return;
+        }
+        for (int i = 0; i < childType; i++) {
+            start += node.getChildRowCount(i);
+        }
+        recordChange(RowChange.REMOVED, start, start, rowsBefore);
+        recordChange(RowChange.INSERTED, start, start, rowsAfter);
+    }
+
+    private int getFirstRowBelow(final InMemoryTreeNode<T> node) {
+        if (node == topSentinel) {
+            return 0;
+        }
+        final int position = getVisiblePosition(node);
+        return position == -1 ? -1 : position + 1;
+    }
+
+    @Override
+    public synchronized void registerTreeChangeListener(final TreeChangeListener listener) {
+        if (!changeListeners.contains(listener)) {
+            changeListeners.add(listener);
+            // changes made before registration were not recorded
+            recordTreeChange();
+        }
+    }
+
+    @Override
+    public synchronized void unregisterTreeChangeListener(final TreeChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * Sets when refreshes are delivered. Frame-aligned by default.
+     *
+     * @param refreshPolicy policy to use
+     */
+    public synchronized void setRefreshPolicy(final RefreshPolicy refreshPolicy) {
+        this.refreshPolicy = refreshPolicy;
+    }
+
+    public synchronized RefreshPolicy getRefreshPolicy() {
+        return refreshPolicy;
+    }
+
+    @Override
+    public synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    @Override
+    public synchronized void commit() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("commit() called without beginBatch()");
+        }
+        batchDepth--;
+        if (batchDepth > 0) {
+            return;
+        }
+        publishSnapshot();
+        if (batchChanged) {
+            batchChanged = false;
+            scheduleRefresh();
+        }
+    }
+
+    @Override
+    public void runBatch(final Runnable mutations) {
+        beginBatch();
+        try {
+            mutations.run();
+        } finally {
+            commit();
+        }
+    }
+
+    /**
+     * Returns the last published immutable version of the tree. Does not lock
+     * the manager, so it can be called on the UI thread while other threads
+     * mutate the tree; their changes show up in the version published at the
+     * next refresh or batch commit.
+     *
+     * @return current snapshot
+     */
+    @Override
+    public TreeSnapshot<T> getSnapshot() {
+        final TreeSnapshot<T> current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            publishSnapshot();
+            return snapshot;
+        }
+    }
+
+    /**
+     * Snapshot taken together with the node map passed to the data tree
+     * refresher by the refresh being delivered.
+     */
+    TreeSnapshot<T> getDispatchedSnapshot() {
+        return dispatchedSnapshot;
+    }
+
+    /**
+     * Publishes a new snapshot if the tree changed since the last one. Only
+     * the changed nodes and their ancestors are copied.
+     */
+    private void publishSnapshot() {
+        final TreeSnapshot.Node<T> root = topSentinel.buildSnapshot();
+        if (snapshot == null || snapshot.getRoot() != root) {
+            snapshot = new TreeSnapshot<T>(root, ++snapshotVersion);
+        }
     }
 
     /**
@@ -79,6 +362,32 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
         this.childTypeCount = childTypeCount;
     }
 
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        topSentinel.relinkRows();
+        // field initialisers do not run for a deserialised object, every
+        // transient field is default valued until set here
+        visibleListCache = null;
+        unmodifiableVisibleList = null;
+        observers = new HashSet<DataSetObserver>();
+        batchDepth = 0;
+        batchChanged = false;
+        refreshPolicy = RefreshPolicy.frameAligned();
+        refreshScheduled = false;
+        dispatching = false;
+        dispatchAgain = false;
+        changeListeners = new ArrayList<TreeChangeListener>();
+        pendingChanges = new ArrayList<RowChange>();
+        pendingTreeChange = false;
+        snapshot = null;
+        snapshotVersion = 0;
+        dispatchedSnapshot = null;
+        traversalStack = null;
+        reducers = NO_REDUCERS;
+        refreshRunnable = newRefreshRunnable();
+    }
+
     private InMemoryTreeNode<T> getNodeFromTreeOrThrow(final T id) {
         if (id == null) {
             throw new NodeNotInTreeException("(null)");
@@ -103,28 +412,40 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
 
     @Override
     public synchronized TreeNodeInfo<T> getNodeInfo(final T id) {
+        return getNodeInfo(id, new TreeNodeInfo<T>());
+    }
+
+    @Override
+    public synchronized TreeNodeInfo<T> getNodeInfo(final T id, final TreeNodeInfo<T> info) {
         final InMemoryTreeNode<T> node = getNodeFromTreeOrThrow(id);
-        final List<InMemoryTreeNode<T>> children = node.getChildren();
-        boolean expanded = false;
-        if (!children.isEmpty() && children.get(0).isVisible()) {
-            expanded = true;
-        }
-        return new TreeNodeInfo<T>(id, node.getLevel(), !children.isEmpty(),
-                node.isVisible(), expanded, node.getData());
+        return fillInfo(node, node.isVisible(), info);
+    }
+
+    private TreeNodeInfo<T> fillInfo(final InMemoryTreeNode<T> node, final boolean visible,
+                                     final TreeNodeInfo<T> info) {
+        return info.set(node.getId(), node.getLevel(), node.hasChildren(0),
+                visible, node.isChildrenExpand(0), node.getData());
     }
 
     @Override
-    public List<T> getChildren(final T id) {
-        final InMemoryTreeNode<T> node = getNodeFromTreeOrThrowAllowRoot(id);
-        return node.getChildIdList();
+    public synchronized List<T> getChildren(final T id) {
+        return getChildren(id, 0);
     }
 
-    public List<T> getChildren(final T id, int childType) {
+    /**
+     * Returns a copy of the ids of the children of one type, unaffected by
+     * later changes of the tree.
+     *
+     * @param id        id of the node or null for the top nodes
+     * @param childType type of the children
+     * @return children of the node
+     */
+    public synchronized List<T> getChildren(final T id, int childType) {
         final InMemoryTreeNode<T> node = getNodeFromTreeOrThrowAllowRoot(id);
         if (node == null) {
             return null;
         }
-        return node.getChildIdList(childType);
+        return new ArrayList<T>(node.getChildIdList(childType));
     }
 
     @Override
@@ -133,17 +454,6 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
         return node.getParent();
     }
 
-    private boolean getChildrenVisibility(final InMemoryTreeNode<T> node) {
-        boolean visibility;
-        final List<InMemoryTreeNode<T>> children = node.getChildren();
-        if (children.isEmpty()) {
-            visibility = visibleByDefault;
-        } else {
-            visibility = children.get(0).isVisible();
-        }
-        return visibility;
-    }
-
     @Override
     public synchronized void addBeforeChild(final T parent, final T newChild,
                                             final T beforeChild) {
@@ -163,18 +473,20 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
         if (node == null) {
             return;
         }
-        final boolean visibility = parent == null ? getChildrenVisibility(node) : isShow;
+        final InMemoryTreeNode<T> added;
         if (beforeChild == null) {
-            final InMemoryTreeNode<T> added = node.add(0, newChild, visibility, data, childType);
-            allNodes.put(newChild, added);
+            added = node.add(0, newChild, isShow, data, childType);
         } else {
-            final int index = node.indexOf(beforeChild);
-            final InMemoryTreeNode<T> added = node.add(index == -1 ? 0 : index,
-                    newChild, visibility, data, childType);
-            allNodes.put(newChild, added);
+            final int index = indexOfChild(node, beforeChild, childType);
+            added = node.add(index == -1 ? 0 : index,
+                    newChild, isShow, data, childType);
         }
-        if (visibility && needNotify) {
-            internalDataSetChanged();
+        allNodes.put(newChild, added);
+        reduceFrom(added);
+        final int position = getVisiblePosition(added);
+        recordChange(RowChange.INSERTED, position, 0, added.getRowCount());
+        if (position != -1 && needNotify) {
+            scheduleRefresh();
         }
     }
 
@@ -196,22 +508,81 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
         if (node == null) {
             return;
         }
-        final boolean visibility = parent == null ? getChildrenVisibility(node) : isShow;
+        final InMemoryTreeNode<T> added;
         if (afterChild == null) {
-            final InMemoryTreeNode<T> added = node.add(
-                    node.getChildrenListSize(childType), newChild, visibility, data, childType);
-            allNodes.put(newChild, added);
+            added = node.add(
+                    node.getChildrenListSize(childType), newChild, isShow, data, childType);
         } else {
-            final int index = node.indexOf(afterChild);
-            final InMemoryTreeNode<T> added = node.add(
+            final int index = indexOfChild(node, afterChild, childType);
+            added = node.add(
                     index == -1 ? node.getChildrenListSize(childType) : index + 1, newChild,
-                    visibility, data, childType);
-            allNodes.put(newChild, added);
+                    isShow, data, childType);
+        }
+        allNodes.put(newChild, added);
+        reduceFrom(added);
+        final int position = getVisiblePosition(added);
+        recordChange(RowChange.INSERTED, position, 0, added.getRowCount());
+        if (position != -1 && needNotify) {
+            scheduleRefresh();
+        }
+    }
+
+    /**
+     * Appends complete subtrees, built detached by {@link TreeBuilder}, to
+     * the top level. Every node is registered, the subtrees are labelled and
+     * linked into the visible list, and the change is published as a single
+     * refresh of the whole list. Nothing is added when one of the ids is
+     * already in the tree or repeats.
+     *
+     * @param roots      roots of the subtrees, level 0 and without parent
+     * @param needNotify whether to notify observers once all is added
+     */
+    synchronized void attachSubtrees(final List<InMemoryTreeNode<T>> roots,
+                                     final boolean needNotify) {
+        registerSubtrees(roots);
+        for (final InMemoryTreeNode<T> root : roots) {
+            topSentinel.setExpanded(root.getNodeType(), true);
+        }
+        topSentinel.appendSubtrees(roots);
+        if (reducers.length > 0) {
+            reduceAll();
+        }
+        recordTreeChange();
+        if (needNotify && !roots.isEmpty()) {
+            scheduleRefresh();
+        }
+    }
+
+    private void registerSubtrees(final List<InMemoryTreeNode<T>> roots) {
+        final ArrayDeque<InMemoryTreeNode<T>> stack = traversalStack();
+        final List<T> registered = new ArrayList<T>();
+        for (final InMemoryTreeNode<T> root : roots) {
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                final InMemoryTreeNode<T> node = stack.pop();
+                final InMemoryTreeNode<T> existing = allNodes.get(node.getId());
+                if (existing != null) {
+                    for (final T id : registered) {
+                        allNodes.remove(id);
+                    }
+                    throw new NodeAlreadyInTreeException(node.getId().toString(), existing.toString());
+                }
+                allNodes.put(node.getId(), node);
+                registered.add(node.getId());
+                for (int i = 0; i < node.getChildCount(); i++) {
+                    stack.push(node.getChildAt(i));
+                }
+            }
         }
+    }
 
-        if (visibility && needNotify) {
-            internalDataSetChanged();
+    private int indexOfChild(final InMemoryTreeNode<T> parentNode, final T childId,
+                             final int childType) {
+        final InMemoryTreeNode<T> child = allNodes.get(childId);
+        if (child == null || child.getNodeType() != childType) {
+            return -1;
         }
+        return parentNode.indexOf(child);
     }
 
     @Override
@@ -220,57 +591,344 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
     }
 
     public synchronized void removeNodeRecursively(final T id, int childType, boolean needNotify) {
-        removeExpandMapRecord((String) id + childType);
+        removeExpandMapRecord(expandKey(id, childType));
         getSizeMap().remove(id);
         final InMemoryTreeNode<T> node = getNodeFromTreeOrThrowAllowRoot(id);
-        final boolean visibleNodeChanged = removeNodeRecursively(node);
-        final T parent = node.getParent();
-        final InMemoryTreeNode<T> parentNode = getNodeFromTreeOrThrowAllowRoot(parent);
-        parentNode.removeChild(id, childType);
+        final InMemoryTreeNode<T> parentNode = node.getParentNode();
+        final boolean visibleNodeChanged;
+        if (parentNode != null) {
+            final int position = getVisiblePosition(node);
+            visibleNodeChanged = position != -1;
+            recordChange(RowChange.REMOVED, position, 0, node.getRowCount());
+            // detach first so visible row counts are adjusted once for the subtree
+            parentNode.removeChild(node);
+        } else {
+            visibleNodeChanged = node.getRowCount() > 0;
+            recordTreeChange();
+        }
+        removeNodeRecursively(node);
+        reduceFrom(parentNode == null ? node : parentNode);
         if (visibleNodeChanged && needNotify) {
-            internalDataSetChanged();
+            scheduleRefresh();
         }
     }
 
-    private synchronized boolean removeNodeRecursively(final InMemoryTreeNode<T> node) {
-        boolean visibleNodeChanged = false;
-        for (int i = 0; i < childTypeCount; i++) {
-            for (final InMemoryTreeNode<T> child : node.getChildren(i)) {
-                if (removeNodeRecursively(child)) {
-                    visibleNodeChanged = true;
-                }
+    /**
+     * Forgets the node and its whole subtree, walking it with an explicit
+     * stack so the depth of the tree does not matter.
+     */
+    private void removeNodeRecursively(final InMemoryTreeNode<T> node) {
+        final ArrayDeque<InMemoryTreeNode<T>> stack = traversalStack();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            final InMemoryTreeNode<T> current = stack.pop();
+            for (int i = 0; i < current.getChildCount(); i++) {
+                stack.push(current.getChildAt(i));
+            }
+            if (current == topSentinel) {
+                current.clearChildren();
+                continue;
             }
+            current.discardChildren();
+            removeExpandMapRecord(expandKey(current.getId(), current.getNodeType()));
+            getSizeMap().remove(current.getId());
+            allNodes.remove(current.getId());
         }
-        node.clearChildren();
-        if (node.getId() != null) {
-            removeExpandMapRecord((String) node.getId() + node.getNodeType());
-            getSizeMap().remove(node.getId());
-            allNodes.remove(node.getId());
-            if (node.isVisible()) {
-                visibleNodeChanged = true;
+    }
+
+    /**
+     * Stack shared by the walks of the tree, so deep trees are walked without
+     * recursion and without allocating a stack per walk. Only used while
+     * holding the lock of the manager.
+     */
+    private ArrayDeque<InMemoryTreeNode<T>> traversalStack() {
+        if (traversalStack == null) {
+            traversalStack = new ArrayDeque<InMemoryTreeNode<T>>();
+        }
+        traversalStack.clear();
+        return traversalStack;
+    }
+
+    @Override
+    public synchronized void moveSubtree(final T id, final T newParent, final T beforeSibling) {
+        moveSubtree(id, newParent, beforeSibling, true);
+    }
+
+    /**
+     * Moves the node with all its descendants by relinking the existing node,
+     * so data, expand state and the whole subtree are kept. Costs O(depth)
+     * plus O(size of the moved subtree): the level, the tour labels and the
+     * jump pointers of every moved node are rewritten, nothing else below
+     * the old or the new parent is touched.
+     *
+     * @param id            id of the node to move
+     * @param newParent     id of the new parent. If null - moves to the top level
+     * @param beforeSibling child of the new parent before which the node is
+     *                      placed. If null - moves to the end.
+     * @param needNotify    whether to notify observers once the node is moved
+     */
+    public synchronized void moveSubtree(final T id, final T newParent, final T beforeSibling,
+                                         final boolean needNotify) {
+        final InMemoryTreeNode<T> node = getNodeFromTreeOrThrow(id);
+        if (node == null) {
+            throw new NodeNotInTreeException(id.toString());
+        }
+        final InMemoryTreeNode<T> parentNode = getNodeFromTreeOrThrowAllowRoot(newParent);
+        if (parentNode == null) {
+            throw new NodeNotInTreeException(newParent.toString());
+        }
+        if (node.containsInSubtree(parentNode)) {
+            throw new TreeConfigurationException("Trying to move " + id
+                    + " below its own subtree (" + newParent + ")");
+        }
+        final InMemoryTreeNode<T> beforeNode = beforeSibling == null ? null : allNodes.get(beforeSibling);
+        if (beforeNode == node) {
+            return;
+        }
+        final int fromPosition = getVisiblePosition(node);
+        final int rowsBefore = node.getRowCount();
+        final boolean wasExpanded = node.getParentNode().isExpanded(node.getNodeType());
+        final InMemoryTreeNode<T> oldParentNode = node.getParentNode();
+        oldParentNode.removeChild(node);
+        reduceFrom(oldParentNode);
+
+        final int childType = node.getNodeType();
+        int index = parentNode.indexOf(beforeNode);
+        if (index == -1 || beforeNode.getNodeType() != childType) {
+            index = parentNode.getChildrenListSize(childType);
+        }
+        if (parentNode.getChildrenListSize(childType) == 0) {
+            // the node follows its new siblings, an empty list takes the old state
+            parentNode.setExpanded(childType, parentNode == topSentinel || wasExpanded);
+        }
+        parentNode.insertChild(index, node);
+        reduceFrom(parentNode);
+        final int toPosition = getVisiblePosition(node);
+        final int rowsAfter = node.getRowCount();
+        if (fromPosition != -1 && toPosition != -1 && rowsBefore == rowsAfter) {
+            recordChange(RowChange.MOVED, fromPosition, toPosition, rowsAfter);
+        } else {
+            recordChange(RowChange.REMOVED, fromPosition, 0, rowsBefore);
+            recordChange(RowChange.INSERTED, toPosition, 0, rowsAfter);
+        }
+
+        final String expandKey = expandKey(id, 0);
+        if (expandMap != null && expandMap.containsKey(expandKey)) {
+            putExpandMapRecord(expandKey, newParent == null ? "" : String.valueOf(newParent));
+        }
+        if (needNotify && (fromPosition != -1 || toPosition != -1)) {
+            scheduleRefresh();
+        }
+    }
+
+    public void sortChildren(final T id, final Comparator<? super InMemoryTreeNode<T>> comparator,
+                             final boolean recursive) {
+        sortChildren(id, comparator, recursive, null, true);
+    }
+
+    /**
+     * Sorts the children of the node in place, each child type on its own,
+     * keeping the order of equal children. The nodes keep their subtrees,
+     * data and expand state, and the reordered rows are published as a change
+     * of the whole tree, so adapters rebuild their rows once.
+     * <p>
+     * The comparator runs on copies of the child lists without the manager
+     * locked, so it may call back into the manager. The sorted order is
+     * written back only if none of the lists changed meanwhile, otherwise the
+     * copies are taken and sorted again. After a few lost attempts the copies
+     * are sorted on the calling thread with the manager locked, so the sort
+     * finishes even while other threads keep editing the tree.
+     * <p>
+     * With an executor the copies of large subtrees are sorted in parallel,
+     * split over a few tasks per processor; copies of different nodes share
+     * nothing, only links and labels are fixed up afterwards in one pass over
+     * the subtree. The comparator has to be thread safe then.
+     *
+     * @param id         node whose children are sorted, null for the top level
+     * @param comparator order of the children
+     * @param recursive  whether the children of all descendants are sorted too
+     * @param executor   executor sorting the lists in parallel, null sorts them
+     *                   on the calling thread
+     * @param needNotify whether to notify observers once sorted
+     */
+    public void sortChildren(final T id,
+                             final Comparator<? super InMemoryTreeNode<T>> comparator,
+                             final boolean recursive, final ExecutorService executor,
+                             final boolean needNotify) {
+        for (int attempt = 0; attempt < MAX_SORT_ATTEMPTS; attempt++) {
+            final InMemoryTreeNode<T> node;
+            final List<ChildNodeList.Order<T>> orders;
+            synchronized (this) {
+                node = requireNodeAllowRoot(id);
+                orders = copyChildOrders(node, recursive);
+            }
+            if (orders.isEmpty()) {
+                return;
+            }
+            sortOrders(orders, comparator, executor);
+            if (applyChildOrders(node, orders, recursive, needNotify)) {
+                return;
+            }
+        }
+        synchronized (this) {
+            final InMemoryTreeNode<T> node = requireNodeAllowRoot(id);
+            final List<ChildNodeList.Order<T>> orders = copyChildOrders(node, recursive);
+            if (!orders.isEmpty()) {
+                // workers of the executor could not call back into the locked
+                // manager, the lists are sorted on this thread
+                sortOrders(orders, comparator, null);
+                applyChildOrders(node, orders, recursive, needNotify);
             }
         }
-        return visibleNodeChanged;
     }
 
-    private synchronized void setChildrenVisibility(final InMemoryTreeNode<T> node,
-                                                    final boolean visible, final boolean recursive) {
-        setChildrenVisibility(node, visible, recursive, 0);
+    private static <T> void sortOrders(final List<ChildNodeList.Order<T>> orders,
+                                       final Comparator<? super InMemoryTreeNode<T>> comparator,
+                                       final ExecutorService executor) {
+        int childCount = 0;
+        for (final ChildNodeList.Order<T> order : orders) {
+            childCount += order.size();
+        }
+        if (executor != null && childCount >= PARALLEL_SORT_CHILDREN) {
+            sortInParallel(orders, comparator, executor);
+        } else {
+            for (final ChildNodeList.Order<T> order : orders) {
+                order.sort(comparator);
+            }
+        }
     }
 
-    private synchronized void setChildrenVisibility(final InMemoryTreeNode<T> node, final boolean visible,
-                                                    final boolean recursive, int childType) {
-        for (final InMemoryTreeNode<T> child : node.getChildren(childType)) {
-            child.setVisible(visible);
-            if (!visible) {
-                getSizeMap().remove(child.getId());
+    /**
+     * Copies the order of every child list with more than one child, of the
+     * node alone or of its whole subtree.
+     */
+    private synchronized List<ChildNodeList.Order<T>> copyChildOrders(
+            final InMemoryTreeNode<T> node, final boolean recursive) {
+        final List<ChildNodeList.Order<T>> orders = new ArrayList<ChildNodeList.Order<T>>();
+        final ArrayDeque<InMemoryTreeNode<T>> stack = traversalStack();
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            final InMemoryTreeNode<T> current = stack.pop();
+            if (current.getChildCount() > 1) {
+                orders.add(current.copyChildOrder());
             }
             if (recursive) {
-                for (int i = 0; i < childTypeCount; i++) {
-                    setChildrenVisibility(child, visible, true, i);
+                for (int i = 0; i < current.getChildCount(); i++) {
+                    stack.push(current.getChildAt(i));
                 }
             }
         }
+        return orders;
+    }
+
+    /**
+     * Writes the sorted orders back and publishes the change, unless a list
+     * changed or left the subtree while the copies were sorted.
+     *
+     * @return false if the sort has to be repeated
+     */
+    private synchronized boolean applyChildOrders(final InMemoryTreeNode<T> node,
+                                                  final List<ChildNodeList.Order<T>> orders,
+                                                  final boolean recursive,
+                                                  final boolean needNotify) {
+        if (node != topSentinel && allNodes.get(node.getId()) != node) {
+            throw new NodeNotInTreeException(String.valueOf(node.getId()));
+        }
+        for (final ChildNodeList.Order<T> order : orders) {
+            final InMemoryTreeNode<T> parent = order.getOwner();
+            if (!order.isCurrent() || parent != node
+                    && (allNodes.get(parent.getId()) != parent || !node.containsInSubtree(parent))) {
+                return false;
+            }
+        }
+        node.reorderChildren(new Runnable() {
+            @Override
+            public void run() {
+                for (final ChildNodeList.Order<T> order : orders) {
+                    order.getOwner().applyChildOrder(order);
+                }
+            }
+        }, recursive);
+        if (recursive) {
+            reduceAll();
+        } else {
+            reduceFrom(node);
+        }
+        final boolean shown = node == topSentinel || getVisiblePosition(node) != -1;
+        if (shown && node.getChildRowCount() > 0) {
+            recordTreeChange();
+            if (needNotify) {
+                scheduleRefresh();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sorts the copied child lists in tasks holding about the same number of
+     * children each.
+     */
+    private static <T> void sortInParallel(final List<ChildNodeList.Order<T>> orders,
+                                           final Comparator<? super InMemoryTreeNode<T>> comparator,
+                                           final ExecutorService executor) {
+        int total = 0;
+        for (final ChildNodeList.Order<T> order : orders) {
+            total += order.size();
+        }
+        final int perTask = Math.max(1, total
+                / (SORT_TASKS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors()));
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        int from = 0;
+        int children = 0;
+        for (int i = 0; i < orders.size(); i++) {
+            children += orders.get(i).size();
+            if (children >= perTask || i == orders.size() - 1) {
+                final List<ChildNodeList.Order<T>> chunk = orders.subList(from, i + 1);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (final ChildNodeList.Order<T> order : chunk) {
+                            order.sort(comparator);
+                        }
+                        return null;
+                    }
+                });
+                from = i + 1;
+                children = 0;
+            }
+        }
+        try {
+            for (final Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while sorting the tree", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Collapses the children of the type with every expanded list below them.
+     * Only the rows which disappear are visited.
+     */
+    private void collapse(final InMemoryTreeNode<T> node, final int childType) {
+        if (sizeMap == null || sizeMap.isEmpty()) {
+            node.collapse(childType, null);
+            return;
+        }
+        final List<InMemoryTreeNode<T>> hidden = new ArrayList<InMemoryTreeNode<T>>();
+        node.collapse(childType, hidden);
+        for (final InMemoryTreeNode<T> child : hidden) {
+            sizeMap.remove(child.getId());
+        }
     }
 
     @Override
@@ -282,11 +940,14 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
         Log.d(TAG, "Expanding direct children of " + id);
         final InMemoryTreeNode<T> node = getNodeFromTreeOrThrowAllowRoot(id);
         if (childType == 0) {
-            putExpandMapRecord((String) id + childType, node.getParent() == null ? "" : (String) node.getParent());
+            putExpandMapRecord(expandKey(id, childType),
+                    node.getParent() == null ? "" : String.valueOf(node.getParent()));
         }
-        setChildrenVisibility(node, true, false, childType);
+        final int rowsBefore = node.getChildRowCount(childType);
+        node.setExpanded(childType, true);
+        recordChildRowsReplaced(node, childType, rowsBefore, node.getChildRowCount(childType));
         if (needNotify) {
-            internalDataSetChanged();
+            scheduleRefresh();
         }
     }
 
@@ -294,8 +955,10 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
     public synchronized void expandEverythingBelow(final T id) {
         Log.d(TAG, "Expanding all children below " + id);
         final InMemoryTreeNode<T> node = getNodeFromTreeOrThrowAllowRoot(id);
-        setChildrenVisibility(node, true, true);
-        internalDataSetChanged();
+        final int rowsBefore = node.getChildRowCount();
+        node.expandAll(0);
+        recordChildRowsReplaced(node, 0, rowsBefore, node.getChildRowCount());
+        scheduleRefresh();
     }
 
     @Override
@@ -305,52 +968,38 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
 
     public synchronized void collapseChildren(final T id, int childType, boolean needNotify) {
         final InMemoryTreeNode<T> node = getNodeFromTreeOrThrowAllowRoot(id);
-        removeExpandMapRecord((String) id + childType);
+        removeExpandMapRecord(expandKey(id, childType));
         if (node == topSentinel) {
             for (final InMemoryTreeNode<T> n : topSentinel.getChildren()) {
-                setChildrenVisibility(n, false, true, childType);
+                final int rowsBefore = n.getChildRowCount(childType);
+                collapse(n, childType);
+                recordChildRowsReplaced(n, childType, rowsBefore, n.getChildRowCount(childType));
             }
         } else {
-            setChildrenVisibility(node, false, true, childType);
+            final int rowsBefore = node.getChildRowCount(childType);
+            collapse(node, childType);
+            recordChildRowsReplaced(node, childType, rowsBefore, node.getChildRowCount(childType));
         }
         if (needNotify) {
-            internalDataSetChanged();
+            scheduleRefresh();
         }
     }
 
     @Override
     public synchronized T getNextSibling(final T id) {
-        final T parent = getParent(id);
-        final InMemoryTreeNode<T> parentNode = getNodeFromTreeOrThrowAllowRoot(parent);
-        boolean returnNext = false;
-        for (int i = 0; i < childTypeCount; i++) {
-            for (final InMemoryTreeNode<T> child : parentNode.getChildren(i)) {
-                if (returnNext) {
-                    if (!child.isVisible()) {
-                        return null;
-                    }
-                    return child.getId();
-                }
-                if (child.getId().equals(id)) {
-                    returnNext = true;
-                }
-            }
+        final InMemoryTreeNode<T> node = getNodeFromTreeOrThrow(id);
+        final InMemoryTreeNode<T> next = node.getParentNode().getNextChild(node);
+        if (next == null || !next.isVisible()) {
+            return null;
         }
-        return null;
+        return next.getId();
     }
 
     @Override
     public synchronized T getPreviousSibling(final T id) {
-        final T parent = getParent(id);
-        final InMemoryTreeNode<T> parentNode = getNodeFromTreeOrThrowAllowRoot(parent);
-        T previousSibling = null;
-        for (final InMemoryTreeNode<T> child : parentNode.getChildren()) {
-            if (child.getId().equals(id)) {
-                return previousSibling;
-            }
-            previousSibling = child.getId();
-        }
-        return null;
+        final InMemoryTreeNode<T> node = getNodeFromTreeOrThrow(id);
+        final InMemoryTreeNode<T> previous = node.getParentNode().getPreviousChild(node);
+        return previous == null ? null : previous.getId();
     }
 
     @Override
@@ -360,38 +1009,110 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
 
     @Override
     public synchronized int getVisibleCount() {
-        return getVisibleList().size();
+        return topSentinel.getRowCount();
     }
 
-    public synchronized Map<T, InMemoryTreeNode<T>> getNodeMap() {
-        T currentId = null;
-        Map<T, InMemoryTreeNode<T>> nodeMap = new LinkedHashMap<T, InMemoryTreeNode<T>>();
-        do {
-            currentId = getNextVisible(currentId);
-            if (currentId == null) {
-                break;
-            } else {
-                InMemoryTreeNode<T> nodeInfo = getNodeFromTreeOrThrow(currentId);
-                if (nodeInfo != null) {
-                    nodeMap.put(currentId, nodeInfo);
-                }
+    @Override
+    public synchronized int getVisiblePosition(final T id) {
+        return getVisiblePosition(getNodeFromTreeOrThrow(id));
+    }
+
+    private int getVisiblePosition(final InMemoryTreeNode<T> shownNode) {
+        InMemoryTreeNode<T> node = shownNode;
+        if (node == null || node == topSentinel) {
+            return -1;
+        }
+        int position = 0;
+        InMemoryTreeNode<T> parentNode = node.getParentNode();
+        while (parentNode != null) {
+            if (!parentNode.isExpanded(node.getNodeType())) {
+                return -1;
+            }
+            position += parentNode.getRowsBefore(node);
+            if (parentNode != topSentinel) {
+                position++;
+            }
+            node = parentNode;
+            parentNode = node.getParentNode();
+        }
+        return node == topSentinel ? position : -1;
+    }
+
+    @Override
+    public synchronized T getVisibleIdAt(final int position) {
+        final InMemoryTreeNode<T> node = getVisibleNodeAt(position);
+        return node == null ? null : node.getId();
+    }
+
+    private InMemoryTreeNode<T> getVisibleNodeAt(final int position) {
+        if (position < 0 || position >= getVisibleCount()) {
+            return null;
+        }
+        InMemoryTreeNode<T> node = topSentinel;
+        int remaining = position;
+        while (true) {
+            final InMemoryTreeNode<T> child = node.getChildAtRow(remaining);
+            if (child == null) {
+                return null;
+            }
+            remaining -= node.getRowsBefore(child);
+            if (remaining == 0) {
+                return child;
             }
-        } while (true);
+            remaining--;
+            node = child;
+        }
+    }
+
+    /**
+     * Finds the first row by its position, then steps along the sibling links
+     * to the following rows, so the cost depends on the window and the depth
+     * of the tree but not on its size.
+     */
+    @Override
+    public synchronized int getVisibleRange(final int firstPosition, final int count,
+                                            final VisibleRowConsumer<T> consumer) {
+        final int visibleCount = getVisibleCount();
+        final int end = (int) Math.min((long) firstPosition + count, visibleCount);
+        if (firstPosition < 0 || firstPosition >= end) {
+            return visibleCount;
+        }
+        final TreeNodeInfo<T> info = new TreeNodeInfo<T>();
+        InMemoryTreeNode<T> node = getVisibleNodeAt(firstPosition);
+        for (int position = firstPosition; position < end && node != null; position++) {
+            consumer.onRow(position, fillInfo(node, true, info));
+            node = node.getNextRow();
+        }
+        return visibleCount;
+    }
+
+    public synchronized Map<T, InMemoryTreeNode<T>> getNodeMap() {
+        final Map<T, InMemoryTreeNode<T>> nodeMap = new LinkedHashMap<T, InMemoryTreeNode<T>>();
+        collectVisible(null, nodeMap);
         return nodeMap;
     }
 
+    /**
+     * Looks up the live nodes of the ids under a single lock, for adapters
+     * which keep their node map up to date from row changes. Ids no longer in
+     * the tree are skipped.
+     *
+     * @param ids     ids to look up
+     * @param nodeMap receives the nodes found
+     */
+    synchronized void resolveNodes(final List<T> ids, final Map<T, InMemoryTreeNode<T>> nodeMap) {
+        for (final T id : ids) {
+            final InMemoryTreeNode<T> node = allNodes.get(id);
+            if (node != null) {
+                nodeMap.put(id, node);
+            }
+        }
+    }
+
     public synchronized List<T> getVisibleList() {
-        T currentId = null;
         if (visibleListCache == null) {
-            visibleListCache = new ArrayList<T>(allNodes.size());
-            do {
-                currentId = getNextVisible(currentId);
-                if (currentId == null) {
-                    break;
-                } else {
-                    visibleListCache.add(currentId);
-                }
-            } while (true);
+            visibleListCache = new ArrayList<T>(getVisibleCount());
+            collectVisible(visibleListCache, null);
         }
         if (unmodifiableVisibleList == null) {
             unmodifiableVisibleList = Collections
@@ -400,36 +1121,58 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
         return unmodifiableVisibleList;
     }
 
+    /**
+     * Collects visible nodes in the display order by following the row links
+     * from the top.
+     */
+    private void collectVisible(final List<T> ids, final Map<T, InMemoryTreeNode<T>> nodes) {
+        for (InMemoryTreeNode<T> row = topSentinel.getNextRow(); row != null; row = row.getNextRow()) {
+            if (ids != null) {
+                ids.add(row.getId());
+            }
+            if (nodes != null) {
+                nodes.put(row.getId(), row);
+            }
+        }
+    }
+
+    /**
+     * Creates a cursor walking the tree without allocating per node. Keep it
+     * and call {@link TreeCursor#reset} for every walk.
+     *
+     * @return new cursor
+     */
+    public TreeCursor<T> newCursor() {
+        return new TreeCursor<T>(this);
+    }
+
     public synchronized T getNextVisible(final T id) {
         final InMemoryTreeNode<T> node = getNodeFromTreeOrThrowAllowRoot(id);
         if (!node.isVisible()) {
             return null;
         }
-        for (int i = 0; i < childTypeCount; i++) {
-            final List<InMemoryTreeNode<T>> children = node.getChildren(i);
-            if (!children.isEmpty()) {
-                final InMemoryTreeNode<T> firstChild = children.get(0);
-                if (firstChild.isVisible()) {
-                    return firstChild.getId();
-                }
-            }
-        }
-        final T sibl = getNextSibling(id);
-        if (sibl != null) {
-            return sibl;
-        }
-        T parent = node.getParent();
-        do {
-            if (parent == null) {
-                return null;
-            }
+        final InMemoryTreeNode<T> next = node.getNextRow();
+        return next == null ? null : next.getId();
+    }
 
-            final T parentSibling = getNextSibling(parent);
-            if (parentSibling != null) {
-                return parentSibling;
-            }
-            parent = getNodeFromTreeOrThrow(parent).getParent();
-        } while (true);
+    /**
+     * Previous node in the visible list. The neighbour is read from the row
+     * links in O(1), only checking that the node is shown walks its ancestors.
+     *
+     * @param id node
+     * @return previous visible node or null for the first row or a hidden node
+     */
+    public synchronized T getPreviousVisible(final T id) {
+        final InMemoryTreeNode<T> previous = previousVisible(getNodeFromTreeOrThrow(id));
+        return previous == null ? null : previous.getId();
+    }
+
+    private InMemoryTreeNode<T> previousVisible(final InMemoryTreeNode<T> node) {
+        if (node == null) {
+            return null;
+        }
+        final InMemoryTreeNode<T> previous = node.getPreviousRow();
+        return previous == null || previous == topSentinel || !node.isVisible() ? null : previous;
     }
 
     @Override
@@ -449,43 +1192,172 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
         return getNodeFromTreeOrThrow(id).getLevel();
     }
 
-    @Override
-    public Integer[] getHierarchyDescription(final T id) {
-        final int level = getLevel(id);
-        final Integer[] hierarchy = new Integer[level + 1];
-        int currentLevel = level;
-        T currentId = id;
-        T parent = getParent(currentId);
-        while (currentLevel >= 0) {
-            hierarchy[currentLevel--] = getChildren(parent).indexOf(currentId);
-            currentId = parent;
-            parent = getParent(parent);
+    /**
+     * Whether the first node is a proper ancestor of the second. O(1), read
+     * from the labels kept on the nodes.
+     *
+     * @param ancestor possible ancestor, null for the top of the tree
+     * @param id       node
+     * @return true if the node is below the ancestor
+     */
+    public synchronized boolean isAncestor(final T ancestor, final T id) {
+        return getNodeFromTreeOrThrowAllowRoot(ancestor).isAncestorOf(requireNode(id));
+    }
+
+    /**
+     * Whether the node is the root of the subtree or one of its descendants.
+     * O(1).
+     *
+     * @param root root of the subtree, null for the whole tree
+     * @param id   node
+     * @return true if the subtree contains the node
+     */
+    public synchronized boolean isInSubtree(final T root, final T id) {
+        return getNodeFromTreeOrThrowAllowRoot(root).containsInSubtree(requireNode(id));
+    }
+
+    /**
+     * Deepest node having both nodes in its subtree, O(log depth).
+     *
+     * @param first  node
+     * @param second other node
+     * @return lowest common ancestor, one of the nodes if it contains the
+     * other, null if it is the top of the tree
+     */
+    public synchronized T getLowestCommonAncestor(final T first, final T second) {
+        return requireNode(first).getLowestCommonAncestor(requireNode(second)).getId();
+    }
+
+    /**
+     * Number of nodes below the node, O(1).
+     *
+     * @param id node, null for the top of the tree
+     * @return count of all descendants
+     */
+    public synchronized int getDescendantCount(final T id) {
+        return requireNodeAllowRoot(id).getDescendantCount();
+    }
+
+    /**
+     * Number of levels below the node, 0 for a leaf, O(1).
+     *
+     * @param id node, null for the top of the tree
+     * @return height of the subtree
+     */
+    public synchronized int getSubtreeHeight(final T id) {
+        return requireNodeAllowRoot(id).getSubtreeHeight();
+    }
+
+    /**
+     * Starts keeping the value of the reducer for every subtree. The values
+     * are computed once for the whole tree, then every change recombines the
+     * values along the path to the top only, each node from the values of its
+     * children. Reducers are not serialized with the manager.
+     *
+     * @param reducer reducer to keep values of
+     */
+    public synchronized void registerReducer(final SubtreeReducer<?> reducer) {
+        if (indexOfReducer(reducer) != -1) {
+            return;
         }
-        return hierarchy;
+        reducers = Arrays.copyOf(reducers, reducers.length + 1);
+        reducers[reducers.length - 1] = reducer;
+        reduceAll();
+    }
+
+    public synchronized void unregisterReducer(final SubtreeReducer<?> reducer) {
+        final int index = indexOfReducer(reducer);
+        if (index == -1) {
+            return;
+        }
+        final SubtreeReducer<?>[] remaining = new SubtreeReducer<?>[reducers.length - 1];
+        System.arraycopy(reducers, 0, remaining, 0, index);
+        System.arraycopy(reducers, index + 1, remaining, index, remaining.length - index);
+        reducers = remaining;
+        reduceAll();
+    }
+
+    /**
+     * Value of the reducer over the subtree, O(1).
+     *
+     * @param reducer registered reducer
+     * @param id      root of the subtree, null for the whole tree
+     * @param <V>     type of the values
+     * @return value of the subtree, null for the top of an empty tree
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <V> V getSubtreeValue(final SubtreeReducer<V> reducer, final T id) {
+        final int index = indexOfReducer(reducer);
+        if (index == -1) {
+            throw new IllegalStateException("The reducer is not registered");
+        }
+        return (V) requireNodeAllowRoot(id).getAggregate(index);
     }
 
-    private void appendToSb(final StringBuilder sb, final T id) {
-        if (id != null) {
-            final TreeNodeInfo<T> node = getNodeInfo(id);
-            final int indent = node.getLevel() * 4;
-            final char[] indentString = new char[indent];
-            Arrays.fill(indentString, ' ');
-            sb.append(indentString);
-            sb.append(node.toString());
-            sb.append(Arrays.asList(getHierarchyDescription(id)).toString());
-            sb.append("\n");
+    private int indexOfReducer(final SubtreeReducer<?> reducer) {
+        for (int i = 0; i < reducers.length; i++) {
+            if (reducers[i] == reducer) {
+                return i;
+            }
         }
-        final List<T> children = getChildren(id);
-        for (final T child : children) {
-            appendToSb(sb, child);
+        return -1;
+    }
+
+    /**
+     * Recombines the values of the reducers of the node and its ancestors.
+     */
+    private void reduceFrom(final InMemoryTreeNode<T> node) {
+        if (reducers.length == 0) {
+            return;
+        }
+        for (InMemoryTreeNode<T> current = node; current != null; current = current.getParentNode()) {
+            current.reduce(reducers);
+        }
+    }
+
+    /**
+     * Computes the values of the reducers for every node, children first.
+     */
+    private void reduceAll() {
+        final TreeCursor<T> cursor = newCursor().reset(TreeCursor.Order.POST_ORDER, null);
+        while (cursor.moveToNext()) {
+            cursor.getNode().reduce(reducers);
         }
+        topSentinel.reduce(reducers);
+    }
+
+    private InMemoryTreeNode<T> requireNodeAllowRoot(final T id) {
+        return id == null ? topSentinel : requireNode(id);
+    }
+
+    private InMemoryTreeNode<T> requireNode(final T id) {
+        final InMemoryTreeNode<T> node = allNodes.get(id);
+        if (node == null) {
+            throw new NodeNotInTreeException(String.valueOf(id));
+        }
+        return node;
+    }
+
+    @Override
+    public Integer[] getHierarchyDescription(final T id) {
+        InMemoryTreeNode<T> node = getNodeFromTreeOrThrow(id);
+        final Integer[] hierarchy = new Integer[node.getLevel() + 1];
+        for (int currentLevel = node.getLevel(); currentLevel >= 0; currentLevel--) {
+            hierarchy[currentLevel] = node.getIndexInParent();
+            node = node.getParentNode();
+        }
+        return hierarchy;
     }
 
     @Override
     public synchronized String toString() {
-        final StringBuilder sb = new StringBuilder();
-        appendToSb(sb, null);
-        return sb.toString();
+        final StringWriter writer = new StringWriter();
+        try {
+            new TreeExporter<T>(this).export(writer, null, TreeExporter.Format.TEXT);
+        } catch (final IOException e) {
+            throw new IllegalStateException(e); // a StringWriter does not fail
+        }
+        return writer.toString();
     }
 
     @Override
@@ -493,63 +1365,56 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
         sizeMap.clear();
         allNodes.clear();
         topSentinel.clearChildren();
-        internalDataSetChanged();
+        reduceFrom(topSentinel);
+        recordTreeChange();
+        scheduleRefresh();
     }
 
     @Override
-    public void refresh() {
-        internalDataSetChanged();
+    public synchronized void refresh() {
+        recordTreeChange();
+        scheduleRefresh();
     }
 
     @Override
     public boolean isLastChild(T nodeID) {
-        T parentID = getParent(nodeID);
-        InMemoryTreeNode parentNode = getNodeFromTreeOrThrowAllowRoot(parentID);
-        int lastVisibleType = 0;
-        for (int i = 0; i < childTypeCount; i++) {
-            List<InMemoryTreeNode<T>> childNodeList = parentNode.getChildren(i);
-            if (childNodeList.size() > 0 && childNodeList.get(0).isVisible()) {
-                lastVisibleType = i;
-            }
-        }
-        List<T> childList = getChildren(parentID, lastVisibleType);
-        if (childList.size() > 0 && childList.indexOf(nodeID) == childList.size() - 1) {
-            return true;
-        }
-        return false;
+        final InMemoryTreeNode<T> node = getNodeFromTreeOrThrow(nodeID);
+        return node.getParentNode().isLastShownChild(node);
     }
 
     @Override
-    public boolean isLastVisibleItem(T nodeID) {
-        if (getVisibleList().indexOf(nodeID) == getVisibleList().size() - 1) {
-            return true;
-        }
-        return false;
+    public synchronized boolean isLastVisibleItem(T nodeID) {
+        final InMemoryTreeNode<T> node = getNodeFromTreeOrThrow(nodeID);
+        return node != null && node.getNextRow() == null && node.isVisible();
     }
 
     @Override
-    public boolean isFirstVisibleItem(T nodeID) {
-        if (getVisibleList().indexOf(nodeID) == 0) {
-            return true;
-        }
-        return false;
+    public synchronized boolean isFirstVisibleItem(T nodeID) {
+        final InMemoryTreeNode<T> node = getNodeFromTreeOrThrow(nodeID);
+        return node != null && node.getPreviousRow() == topSentinel && node.isVisible();
     }
 
     @Override
     public TreeNodeInfo<T> getPreviousVisibleItem(T nodeID) {
-        int index = getVisibleList().indexOf(nodeID);
-        if (index > 0) {
-            return getNodeInfo(getVisibleList().get(index - 1));
-        } else
-            return null;
+        return getPreviousVisibleItem(nodeID, new TreeNodeInfo<T>());
     }
 
     @Override
     public TreeNodeInfo<T> getNextVisibleItem(T nodeID) {
-        int index = getVisibleList().indexOf(nodeID);
-        if (index < getVisibleCount() - 1) {
-            return getNodeInfo(getVisibleList().get(index + 1));
-        } else return null;
+        return getNextVisibleItem(nodeID, new TreeNodeInfo<T>());
+    }
+
+    @Override
+    public synchronized TreeNodeInfo<T> getPreviousVisibleItem(T nodeID, TreeNodeInfo<T> info) {
+        final InMemoryTreeNode<T> previous = previousVisible(getNodeFromTreeOrThrow(nodeID));
+        return previous == null ? null : fillInfo(previous, true, info);
+    }
+
+    @Override
+    public synchronized TreeNodeInfo<T> getNextVisibleItem(T nodeID, TreeNodeInfo<T> info) {
+        final InMemoryTreeNode<T> node = getNodeFromTreeOrThrow(nodeID);
+        final InMemoryTreeNode<T> next = node != null && node.isVisible() ? node.getNextRow() : null;
+        return next == null ? null : fillInfo(next, true, info);
     }
 
     public Map<T, Integer> getSizeMap() {
@@ -563,17 +1428,20 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
         this.expandMap = expandMap;
     }
 
-    public void updateNodeData(T nodeID, Object data, boolean needNotify) {
+    public synchronized void updateNodeData(T nodeID, Object data, boolean needNotify) {
         if (data == null) {
             return;
         }
-        InMemoryTreeNode memoryTreeNode = getNodeFromTreeOrThrowAllowRoot(nodeID);
+        InMemoryTreeNode<T> memoryTreeNode = getNodeFromTreeOrThrowAllowRoot(nodeID);
         if (memoryTreeNode == null) {
             return;
         }
         memoryTreeNode.setData(data);
-        if (memoryTreeNode.isVisible() && needNotify) {
-            internalDataSetChanged();
+        reduceFrom(memoryTreeNode);
+        final int position = getVisiblePosition(memoryTreeNode);
+        recordChange(RowChange.CHANGED, position, 0, 1);
+        if (position != -1 && needNotify) {
+            scheduleRefresh();
         }
     }
 
@@ -600,13 +1468,7 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
 
     public boolean hasChildrenExpand(T nodeID) {
         InMemoryTreeNode node = getNodeFromTreeOrThrowAllowRoot(nodeID);
-        for (int i = 0; i < childTypeCount; i++) {
-            List<InMemoryTreeNode<T>> childList = node.getChildren(i);
-            if (childList.size() > 0 && childList.get(0).isVisible()) {
-                return true;
-            }
-        }
-        return false;
+        return node.hasChildrenExpand();
     }
 
     public InMemoryTreeNode<T> getTopSentinel() {
@@ -633,6 +1495,14 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
         this.currentAdapter = currentAdapter;
     }
 
+    /**
+     * Key of the expand record of the children of the type, valid for ids of
+     * any type.
+     */
+    private static String expandKey(final Object id, final int childType) {
+        return String.valueOf(id) + childType;
+    }
+
     public synchronized void removeExpandMapRecord(String mapKey) {
         if (expandMap == null) {
             return;
@@ -647,4 +1517,43 @@ public class InMemoryTreeStateManager<T> implements TreeStateManager<T> {
         expandMap.put(mapKey, value);
     }
 
+    /**
+     * Change of the visible list recorded until the refresh is dispatched.
+     */
+    private static final class RowChange {
+        static final int INSERTED = 0;
+        static final int REMOVED = 1;
+        static final int MOVED = 2;
+        static final int CHANGED = 3;
+
+        final int kind;
+        final int position;
+        final int toPosition;
+        final int count;
+
+        RowChange(final int kind, final int position, final int toPosition, final int count) {
+            this.kind = kind;
+            this.position = position;
+            this.toPosition = toPosition;
+            this.count = count;
+        }
+
+        void deliver(final TreeChangeListener listener) {
+            switch (kind) {
+                case INSERTED:
+                    listener.onRowsInserted(position, count);
+                    break;
+                case REMOVED:
+                    listener.onRowsRemoved(position, count);
+                    break;
+                case MOVED:
+                    listener.onRowsMoved(position, toPosition, count);
+                    break;
+                default:
+                    listener.onRowsChanged(position, count);
+                    break;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,113 @@
+package com.treeviewlist;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Map from int ids to int handles with open addressing over two int arrays,
+ * the primitive counterpart of {@link NodeIndex}. {@link #EMPTY} marks free
+ * slots, so it can not be used as an id.
+ */
+final class IntIdIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static final int EMPTY = Integer.MIN_VALUE;
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] keys = newKeys(MIN_CAPACITY);
+    private int[] values = new int[MIN_CAPACITY];
+    private int size;
+
+    private static int[] newKeys(final int capacity) {
+        final int[] keys = new int[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+
+    /**
+     * @return the handle of the id or -1 if the id is not in the index
+     */
+    int get(final int id) {
+        final int mask = keys.length - 1;
+        for (int i = slot(id, mask); ; i = (i + 1) & mask) {
+            final int key = keys[i];
+            if (key == id) {
+                return values[i];
+            }
+            if (key == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    void put(final int id, final int handle) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        final int mask = keys.length - 1;
+        int i = slot(id, mask);
+        while (keys[i] != EMPTY && keys[i] != id) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == EMPTY) {
+            size++;
+        }
+        keys[i] = id;
+        values[i] = handle;
+    }
+
+    void remove(final int id) {
+        final int mask = keys.length - 1;
+        int i = slot(id, mask);
+        while (keys[i] != id) {
+            if (keys[i] == EMPTY) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        int hole = i;
+        for (int j = (hole + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            final int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = EMPTY;
+        size--;
+    }
+
+    void clear() {
+        keys = newKeys(MIN_CAPACITY);
+        values = new int[MIN_CAPACITY];
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void resize(final int capacity) {
+        final int[] oldKeys = keys;
+        final int[] oldValues = values;
+        keys = newKeys(capacity);
+        values = new int[capacity];
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == EMPTY) {
+                continue;
+            }
+            int i = slot(oldKeys[j], mask);
+            while (keys[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    private static int slot(final int key, final int mask) {
+        final int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,735 @@
+package com.treeviewlist;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Tree structure kept in parallel int columns indexed by node handle, without
+ * an object per node. Children are linked through first/last child and
+ * next/previous sibling columns. Handle 0 is the root, which is not shown and
+ * is always expanded. Handles of removed nodes are reused through a free list
+ * threaded over the next sibling column.
+ * <p>
+ * Row counts follow {@link InMemoryTreeNode}: every node keeps the rows of
+ * its children, whether it is expanded or not, and changes propagate up until
+ * a collapsed node, so expanding and collapsing is O(depth).
+ * <p>
+ * Parents with many children get a {@link RowIndex} on the first position
+ * lookup below them: their children in order with a Fenwick tree of the row
+ * counts, as {@link ChildNodeList} keeps. Position lookups then take
+ * O(depth &times; log fan-out). Row count changes update the index, appends
+ * and removals at the end extend or shrink it, any other edit of the
+ * children drops it until the next lookup. The indexes are not serialized.
+ */
+final class IntNodeStore implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static final int NONE = -1;
+    static final int ROOT = 0;
+    private static final int EXPANDED = 1;
+    private static final int LIVE = 2;
+    private static final int MIN_CAPACITY = 16;
+    private static final int COMPACT_THRESHOLD = 1024;
+    private static final int ROW_INDEX_MIN_CHILDREN = 32;
+
+    /**
+     * Receives handles of a walk over the store.
+     */
+    interface HandleVisitor {
+        void visit(int handle);
+    }
+
+    /**
+     * Children of one parent in order, with a Fenwick tree of their row
+     * counts over the slots. Entries past the size are stale and are
+     * overwritten when the index grows again.
+     */
+    private static final class RowIndex {
+        int[] children;
+        int[] rowTree;
+        int size;
+
+        RowIndex(final int capacity) {
+            children = new int[capacity];
+            rowTree = new int[capacity + 1];
+        }
+
+        /**
+         * @return rows of the children before the slot
+         */
+        int rowsBefore(final int slot) {
+            int rows = 0;
+            for (int i = slot; i > 0; i -= i & -i) {
+                rows += rowTree[i];
+            }
+            return rows;
+        }
+
+        void addRows(final int slot, final int delta) {
+            for (int i = slot + 1; i <= size; i += i & -i) {
+                rowTree[i] += delta;
+            }
+        }
+
+        /**
+         * @param row row relative to the first child, below the rows of all
+         *            children
+         * @return slot of the child whose rows contain the row
+         */
+        int slotOfRow(final int row) {
+            int slot = 0;
+            int remaining = row;
+            for (int step = Integer.highestOneBit(size); step > 0; step >>= 1) {
+                final int next = slot + step;
+                if (next <= size && rowTree[next] <= remaining) {
+                    slot = next;
+                    remaining -= rowTree[next];
+                }
+            }
+            return slot;
+        }
+
+        /**
+         * Appends the child, filling in its Fenwick entry from the prefix
+         * sums of the ones before it.
+         *
+         * @return slot of the child
+         */
+        int append(final int handle, final int rows) {
+            if (size == children.length) {
+                children = Arrays.copyOf(children, size * 2);
+                rowTree = Arrays.copyOf(rowTree, size * 2 + 1);
+            }
+            final int slot = size++;
+            children[slot] = handle;
+            rowTree[size] = rows + rowsBefore(slot) - rowsBefore(size - (size & -size));
+            return slot;
+        }
+
+        void removeLast() {
+            size--;
+        }
+    }
+
+    private int[] parent;
+    private int[] firstChild;
+    private int[] lastChild;
+    private int[] nextSibling;
+    private int[] previousSibling;
+    private int[] childCount;
+    private int[] childRows;
+    private int[] level;
+    private int[] flags;
+    private transient RowIndex[] rowIndexes;
+    private transient int[] rowSlot;
+    private int highWater;
+    private int freeHead = NONE;
+    private int liveCount;
+
+    IntNodeStore(final int capacity) {
+        final int size = Math.max(MIN_CAPACITY, capacity);
+        parent = new int[size];
+        firstChild = new int[size];
+        lastChild = new int[size];
+        nextSibling = new int[size];
+        previousSibling = new int[size];
+        childCount = new int[size];
+        childRows = new int[size];
+        level = new int[size];
+        flags = new int[size];
+        rowIndexes = new RowIndex[size];
+        rowSlot = new int[size];
+        final int root = allocate();
+        level[root] = -1;
+        flags[root] |= EXPANDED;
+    }
+
+    /**
+     * Allocates a detached, collapsed node.
+     *
+     * @return handle of the node
+     */
+    int allocate() {
+        final int handle;
+        if (freeHead != NONE) {
+            handle = freeHead;
+            freeHead = nextSibling[handle];
+        } else {
+            if (highWater == parent.length) {
+                grow(highWater * 2);
+            }
+            handle = highWater++;
+        }
+        parent[handle] = NONE;
+        firstChild[handle] = NONE;
+        lastChild[handle] = NONE;
+        nextSibling[handle] = NONE;
+        previousSibling[handle] = NONE;
+        childCount[handle] = 0;
+        childRows[handle] = 0;
+        level[handle] = 0;
+        flags[handle] = LIVE;
+        rowIndexes[handle] = null;
+        liveCount++;
+        return handle;
+    }
+
+    /**
+     * Returns the handle of a detached node without children to the free list.
+     */
+    void free(final int handle) {
+        flags[handle] = 0;
+        nextSibling[handle] = freeHead;
+        freeHead = handle;
+        liveCount--;
+    }
+
+    /**
+     * Frees the detached node with its whole subtree in post-order, so the
+     * links are read before the handles are reused.
+     *
+     * @param handle  detached node
+     * @param visitor called with every handle before it is freed, may be null
+     */
+    void freeSubtree(final int handle, final HandleVisitor visitor) {
+        int node = handle;
+        while (firstChild[node] != NONE) {
+            node = firstChild[node];
+        }
+        while (true) {
+            final int next = nextSibling[node];
+            final int parentHandle = parent[node];
+            if (visitor != null) {
+                visitor.visit(node);
+            }
+            free(node);
+            if (node == handle) {
+                return;
+            }
+            if (next != NONE) {
+                node = next;
+                while (firstChild[node] != NONE) {
+                    node = firstChild[node];
+                }
+            } else {
+                node = parentHandle;
+            }
+        }
+    }
+
+    /**
+     * Whether enough handles were freed since the last compaction to make
+     * compacting worthwhile.
+     */
+    boolean shouldCompact() {
+        return highWater > COMPACT_THRESHOLD && liveCount * 4 < highWater;
+    }
+
+    /**
+     * Renumbers the live nodes densely in pre-order, so siblings and
+     * subtrees sit next to each other in the columns, and shrinks the
+     * columns. Side tables indexed by handle have to be remapped by the
+     * caller.
+     *
+     * @return new handle by old handle, NONE for freed handles
+     */
+    int[] compact() {
+        final int[] newHandles = new int[highWater];
+        Arrays.fill(newHandles, NONE);
+        int count = 0;
+        for (int node = ROOT; node != NONE; node = nextInSubtree(ROOT, node)) {
+            newHandles[node] = count++;
+        }
+        final int capacity = Math.max(MIN_CAPACITY, count + count / 2);
+        parent = remap(parent, newHandles, count, capacity, true);
+        firstChild = remap(firstChild, newHandles, count, capacity, true);
+        lastChild = remap(lastChild, newHandles, count, capacity, true);
+        nextSibling = remap(nextSibling, newHandles, count, capacity, true);
+        previousSibling = remap(previousSibling, newHandles, count, capacity, true);
+        childCount = remap(childCount, newHandles, count, capacity, false);
+        childRows = remap(childRows, newHandles, count, capacity, false);
+        level = remap(level, newHandles, count, capacity, false);
+        flags = remap(flags, newHandles, count, capacity, false);
+        // the row indexes hold old handles, they are rebuilt on demand
+        rowIndexes = new RowIndex[capacity];
+        rowSlot = new int[capacity];
+        highWater = count;
+        liveCount = count;
+        freeHead = NONE;
+        return newHandles;
+    }
+
+    /**
+     * Moves the column to the new handles, translating the values too when
+     * they are handles themselves.
+     */
+    private static int[] remap(final int[] column, final int[] newHandles, final int count,
+                               final int capacity, final boolean links) {
+        final int[] result = new int[capacity];
+        for (int old = 0; old < newHandles.length; old++) {
+            final int handle = newHandles[old];
+            if (handle == NONE) {
+                continue;
+            }
+            final int value = column[old];
+            result[handle] = links && value != NONE ? newHandles[value] : value;
+        }
+        return result;
+    }
+
+    private void grow(final int capacity) {
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        lastChild = Arrays.copyOf(lastChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        previousSibling = Arrays.copyOf(previousSibling, capacity);
+        childCount = Arrays.copyOf(childCount, capacity);
+        childRows = Arrays.copyOf(childRows, capacity);
+        level = Arrays.copyOf(level, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        rowIndexes = Arrays.copyOf(rowIndexes, capacity);
+        rowSlot = Arrays.copyOf(rowSlot, capacity);
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        rowIndexes = new RowIndex[parent.length];
+        rowSlot = new int[parent.length];
+    }
+
+    /**
+     * Links a detached node below the parent.
+     *
+     * @param parentHandle parent
+     * @param handle       detached node
+     * @param before       child of the parent to insert before, NONE appends
+     */
+    void link(final int parentHandle, final int handle, final int before) {
+        parent[handle] = parentHandle;
+        if (before == NONE) {
+            final int last = lastChild[parentHandle];
+            previousSibling[handle] = last;
+            nextSibling[handle] = NONE;
+            if (last == NONE) {
+                firstChild[parentHandle] = handle;
+            } else {
+                nextSibling[last] = handle;
+            }
+            lastChild[parentHandle] = handle;
+        } else {
+            final int previous = previousSibling[before];
+            previousSibling[handle] = previous;
+            nextSibling[handle] = before;
+            previousSibling[before] = handle;
+            if (previous == NONE) {
+                firstChild[parentHandle] = handle;
+            } else {
+                nextSibling[previous] = handle;
+            }
+        }
+        childCount[parentHandle]++;
+        shiftLevels(handle, level[parentHandle] + 1 - level[handle]);
+        final RowIndex rowIndex = rowIndexes[parentHandle];
+        if (rowIndex != null) {
+            if (before == NONE) {
+                rowSlot[handle] = rowIndex.append(handle, getRowCount(handle));
+            } else {
+                rowIndexes[parentHandle] = null;
+            }
+        }
+        addChildRows(parentHandle, getRowCount(handle));
+    }
+
+    /**
+     * Detaches the node with its subtree from its parent.
+     */
+    void unlink(final int handle) {
+        final int parentHandle = parent[handle];
+        if (parentHandle == NONE) {
+            return;
+        }
+        final int previous = previousSibling[handle];
+        final int next = nextSibling[handle];
+        final RowIndex rowIndex = rowIndexes[parentHandle];
+        if (rowIndex != null) {
+            if (next == NONE) {
+                rowIndex.removeLast();
+            } else {
+                rowIndexes[parentHandle] = null;
+            }
+        }
+        if (previous == NONE) {
+            firstChild[parentHandle] = next;
+        } else {
+            nextSibling[previous] = next;
+        }
+        if (next == NONE) {
+            lastChild[parentHandle] = previous;
+        } else {
+            previousSibling[next] = previous;
+        }
+        parent[handle] = NONE;
+        nextSibling[handle] = NONE;
+        previousSibling[handle] = NONE;
+        childCount[parentHandle]--;
+        addChildRows(parentHandle, -getRowCount(handle));
+    }
+
+    private void shiftLevels(final int handle, final int delta) {
+        if (delta == 0) {
+            return;
+        }
+        // pre-order walk over the links, no stack needed
+        int node = handle;
+        while (node != NONE) {
+            level[node] += delta;
+            node = nextInSubtree(handle, node);
+        }
+    }
+
+    /**
+     * Next node of the subtree in pre-order.
+     *
+     * @param top  root of the subtree
+     * @param node current node
+     * @return next node or NONE at the end of the subtree
+     */
+    int nextInSubtree(final int top, final int node) {
+        if (firstChild[node] != NONE) {
+            return firstChild[node];
+        }
+        int current = node;
+        while (current != top) {
+            if (nextSibling[current] != NONE) {
+                return nextSibling[current];
+            }
+            current = parent[current];
+        }
+        return NONE;
+    }
+
+    private void addChildRows(final int handle, final int delta) {
+        int node = handle;
+        while (node != NONE && delta != 0) {
+            childRows[node] += delta;
+            if ((flags[node] & EXPANDED) == 0) {
+                break;
+            }
+            addToParentIndex(node, delta);
+            node = parent[node];
+        }
+    }
+
+    /**
+     * Records a change of the row count of the node in the row index of its
+     * parent.
+     */
+    private void addToParentIndex(final int handle, final int delta) {
+        final int parentHandle = parent[handle];
+        if (parentHandle != NONE && rowIndexes[parentHandle] != null) {
+            rowIndexes[parentHandle].addRows(rowSlot[handle], delta);
+        }
+    }
+
+    /**
+     * Row index of the children of the node, built if the node has enough
+     * children to be worth it.
+     *
+     * @return the index or null if the children are to be walked
+     */
+    private RowIndex rowIndexOf(final int handle) {
+        RowIndex rowIndex = rowIndexes[handle];
+        if (rowIndex != null || childCount[handle] < ROW_INDEX_MIN_CHILDREN) {
+            return rowIndex;
+        }
+        rowIndex = new RowIndex(childCount[handle]);
+        final int[] rowTree = rowIndex.rowTree;
+        int slot = 0;
+        for (int child = firstChild[handle]; child != NONE; child = nextSibling[child]) {
+            rowIndex.children[slot] = child;
+            rowSlot[child] = slot;
+            slot++;
+            rowTree[slot] += getRowCount(child);
+            final int up = slot + (slot & -slot);
+            if (up < rowTree.length) {
+                rowTree[up] += rowTree[slot];
+            }
+        }
+        rowIndex.size = slot;
+        rowIndexes[handle] = rowIndex;
+        return rowIndex;
+    }
+
+    int getRowCount(final int handle) {
+        final int own = handle == ROOT ? 0 : 1;
+        return (flags[handle] & EXPANDED) == 0 ? own : own + childRows[handle];
+    }
+
+    boolean isExpanded(final int handle) {
+        return (flags[handle] & EXPANDED) != 0;
+    }
+
+    /**
+     * Flips the expanded flag of the node alone in O(depth).
+     */
+    void setExpanded(final int handle, final boolean expanded) {
+        if (handle == ROOT || isExpanded(handle) == expanded) {
+            return;
+        }
+        final int rows = childRows[handle];
+        if (expanded) {
+            flags[handle] |= EXPANDED;
+        } else {
+            flags[handle] &= ~EXPANDED;
+        }
+        addToParentIndex(handle, expanded ? rows : -rows);
+        if (parent[handle] != NONE) {
+            addChildRows(parent[handle], expanded ? rows : -rows);
+        }
+    }
+
+    /**
+     * Collapses the node and the expanded nodes below it, visiting only the
+     * rows which disappear.
+     */
+    void collapse(final int handle) {
+        if (handle == ROOT) {
+            for (int child = firstChild[ROOT]; child != NONE; child = nextSibling[child]) {
+                collapse(child);
+            }
+            return;
+        }
+        if (!isExpanded(handle)) {
+            return;
+        }
+        setExpanded(handle, false);
+        int node = handle;
+        while (node != NONE) {
+            // every child ends with a single row
+            childRows[node] = childCount[node];
+            rowIndexes[node] = null;
+            if (node != handle) {
+                flags[node] &= ~EXPANDED;
+            }
+            node = nextExpanded(handle, node);
+        }
+    }
+
+    /**
+     * Next node of the subtree in pre-order, entering only expanded children.
+     */
+    private int nextExpanded(final int top, final int node) {
+        for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+            if (isExpanded(child)) {
+                return child;
+            }
+        }
+        int current = node;
+        while (current != top) {
+            for (int sibling = nextSibling[current]; sibling != NONE; sibling = nextSibling[sibling]) {
+                if (isExpanded(sibling)) {
+                    return sibling;
+                }
+            }
+            current = parent[current];
+        }
+        return NONE;
+    }
+
+    /**
+     * Expands the node and everything below it, recounting rows bottom-up.
+     */
+    void expandAll(final int handle) {
+        final int rowsBefore = getRowCount(handle);
+        // post-order over the links: descend to the first leaf, then climb
+        int node = handle;
+        while (firstChild[node] != NONE) {
+            node = firstChild[node];
+        }
+        while (true) {
+            int rows = 0;
+            for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+                rows += getRowCount(child);
+            }
+            childRows[node] = rows;
+            flags[node] |= EXPANDED;
+            rowIndexes[node] = null;
+            if (node == handle) {
+                break;
+            }
+            if (nextSibling[node] != NONE) {
+                node = nextSibling[node];
+                while (firstChild[node] != NONE) {
+                    node = firstChild[node];
+                }
+            } else {
+                node = parent[node];
+            }
+        }
+        addToParentIndex(handle, getRowCount(handle) - rowsBefore);
+        if (parent[handle] != NONE) {
+            addChildRows(parent[handle], getRowCount(handle) - rowsBefore);
+        }
+    }
+
+    boolean isVisible(final int handle) {
+        int node = parent[handle];
+        while (node != NONE) {
+            if (!isExpanded(node)) {
+                return false;
+            }
+            if (node == ROOT) {
+                return true;
+            }
+            node = parent[node];
+        }
+        return false;
+    }
+
+    /**
+     * Position of the node in the visible list. Sums the rows of the
+     * preceding siblings at every level, through the row index of parents
+     * with many children.
+     *
+     * @return position or -1 if the node is hidden
+     */
+    int getPosition(final int handle) {
+        if (handle == ROOT || !isVisible(handle)) {
+            return -1;
+        }
+        int position = 0;
+        int node = handle;
+        while (node != ROOT) {
+            final RowIndex rowIndex = rowIndexOf(parent[node]);
+            if (rowIndex != null) {
+                position += rowIndex.rowsBefore(rowSlot[node]);
+            } else {
+                for (int sibling = previousSibling[node]; sibling != NONE;
+                     sibling = previousSibling[sibling]) {
+                    position += getRowCount(sibling);
+                }
+            }
+            node = parent[node];
+            if (node != ROOT) {
+                position++;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Node shown at the position of the visible list.
+     *
+     * @return handle or NONE if out of range
+     */
+    int getHandleAt(final int position) {
+        if (position < 0 || position >= childRows[ROOT]) {
+            return NONE;
+        }
+        int node = ROOT;
+        int remaining = position;
+        while (true) {
+            final RowIndex rowIndex = rowIndexOf(node);
+            int child;
+            if (rowIndex != null) {
+                final int slot = rowIndex.slotOfRow(remaining);
+                child = rowIndex.children[slot];
+                remaining -= rowIndex.rowsBefore(slot);
+            } else {
+                child = firstChild[node];
+            }
+            while (child != NONE) {
+                final int rows = getRowCount(child);
+                if (remaining < rows) {
+                    break;
+                }
+                remaining -= rows;
+                child = nextSibling[child];
+            }
+            if (child == NONE) {
+                return NONE;
+            }
+            if (remaining == 0) {
+                return child;
+            }
+            remaining--;
+            node = child;
+        }
+    }
+
+    int getVisibleCount() {
+        return childRows[ROOT];
+    }
+
+    int getParent(final int handle) {
+        return parent[handle];
+    }
+
+    int getFirstChild(final int handle) {
+        return firstChild[handle];
+    }
+
+    int getLastChild(final int handle) {
+        return lastChild[handle];
+    }
+
+    int getNextSibling(final int handle) {
+        return nextSibling[handle];
+    }
+
+    int getPreviousSibling(final int handle) {
+        return previousSibling[handle];
+    }
+
+    int getChildCount(final int handle) {
+        return childCount[handle];
+    }
+
+    int getLevel(final int handle) {
+        return level[handle];
+    }
+
+    /**
+     * Index among the siblings, read from the row index of the parent if it
+     * has one, counted by walking the previous siblings otherwise.
+     */
+    int getIndexInParent(final int handle) {
+        final int parentHandle = parent[handle];
+        if (parentHandle != NONE && rowIndexes[parentHandle] != null) {
+            return rowSlot[handle];
+        }
+        int index = 0;
+        for (int sibling = previousSibling[handle]; sibling != NONE;
+             sibling = previousSibling[sibling]) {
+            index++;
+        }
+        return index;
+    }
+
+    boolean isLive(final int handle) {
+        return handle >= 0 && handle < highWater && (flags[handle] & LIVE) != 0;
+    }
+
+    int getLiveCount() {
+        return liveCount;
+    }
+
+    int getHighWater() {
+        return highWater;
+    }
+
+    /**
+     * Detaches all nodes below the root and releases every handle.
+     */
+    void clear() {
+        Arrays.fill(rowIndexes, null);
+        highWater = 0;
+        freeHead = NONE;
+        liveCount = 0;
+        final int root = allocate();
+        level[root] = -1;
+        flags[root] |= EXPANDED;
+    }
+}
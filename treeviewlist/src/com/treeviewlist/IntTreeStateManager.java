@@ -0,0 +1,412 @@
+package com.treeviewlist;
+
+import android.database.DataSetObserver;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tree state manager specialised for int ids with a single child type. The
+ * structure lives in int columns (see {@link IntNodeStore}) and ids are found
+ * through a primitive hash index, so lookups and traversals neither box ids
+ * nor allocate nodes.
+ * <p>
+ * {@link #NO_ID} stands for the top of the tree (where the generic manager
+ * takes null) and for "no node" in results; it can not be used as an id.
+ * Visibility follows {@link InMemoryTreeStateManager}: a node is shown when
+ * all its ancestors are expanded, and the first child added to a node decides
+ * whether the node is expanded.
+ */
+public class IntTreeStateManager implements Serializable {
+    private static final long serialVersionUID = 1L;
+    public static final int NO_ID = IntIdIndex.EMPTY;
+
+    private final IntNodeStore store;
+    private final IntIdIndex index = new IntIdIndex();
+    private int[] ids;
+    private Object[] data;
+    private transient List<DataSetObserver> observers = new ArrayList<DataSetObserver>();
+    private transient RefreshPolicy refreshPolicy = RefreshPolicy.frameAligned();
+    private transient int batchDepth = 0;
+    private transient boolean batchChanged = false;
+    private transient boolean refreshScheduled = false;
+
+    private transient IntNodeStore.HandleVisitor releaser = newReleaser();
+    private transient Runnable refreshRunnable = newRefreshRunnable();
+
+    private IntNodeStore.HandleVisitor newReleaser() {
+        return new IntNodeStore.HandleVisitor() {
+            @Override
+            public void visit(final int handle) {
+                index.remove(ids[handle]);
+                data[handle] = null;
+            }
+        };
+    }
+
+    private Runnable newRefreshRunnable() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                dispatchRefresh();
+            }
+        };
+    }
+
+    public IntTreeStateManager() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize number of nodes to allocate the columns for
+     */
+    public IntTreeStateManager(final int expectedSize) {
+        store = new IntNodeStore(expectedSize + 1);
+        ids = new int[Math.max(16, expectedSize + 1)];
+        data = new Object[ids.length];
+        ids[IntNodeStore.ROOT] = NO_ID;
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        // field initialisers do not run for a deserialised object, every
+        // transient field is default valued until set here
+        observers = new ArrayList<DataSetObserver>();
+        refreshPolicy = RefreshPolicy.frameAligned();
+        batchDepth = 0;
+        batchChanged = false;
+        refreshScheduled = false;
+        releaser = newReleaser();
+        refreshRunnable = newRefreshRunnable();
+    }
+
+    private int getHandleOrThrow(final int id) {
+        final int handle = index.get(id);
+        if (handle == -1) {
+            throw new NodeNotInTreeException(String.valueOf(id));
+        }
+        return handle;
+    }
+
+    private int getHandleOrThrowAllowRoot(final int id) {
+        return id == NO_ID ? IntNodeStore.ROOT : getHandleOrThrow(id);
+    }
+
+    private int idOf(final int handle) {
+        return handle == IntNodeStore.NONE ? NO_ID : ids[handle];
+    }
+
+    public synchronized void addBeforeChild(final int parent, final int newChild,
+                                            final int beforeChild, final Object nodeData,
+                                            final boolean isShow) {
+        final int parentHandle = getHandleOrThrowAllowRoot(parent);
+        int before = beforeChild == NO_ID ? IntNodeStore.NONE : index.get(beforeChild);
+        if (before == -1 || store.getParent(before) != parentHandle) {
+            before = store.getFirstChild(parentHandle);
+        }
+        add(parentHandle, newChild, before, nodeData, isShow);
+    }
+
+    public synchronized void addAfterChild(final int parent, final int newChild,
+                                           final int afterChild, final Object nodeData,
+                                           final boolean isShow) {
+        final int parentHandle = getHandleOrThrowAllowRoot(parent);
+        final int after = afterChild == NO_ID ? -1 : index.get(afterChild);
+        final int before = after == -1 || store.getParent(after) != parentHandle
+                ? IntNodeStore.NONE : store.getNextSibling(after);
+        add(parentHandle, newChild, before, nodeData, isShow);
+    }
+
+    private void add(final int parentHandle, final int id, final int before,
+                     final Object nodeData, final boolean isShow) {
+        if (id == NO_ID) {
+            throw new TreeConfigurationException("NO_ID can not be used as a node id");
+        }
+        if (index.get(id) != -1) {
+            throw new NodeAlreadyInTreeException(String.valueOf(id), String.valueOf(id));
+        }
+        if (store.getChildCount(parentHandle) == 0) {
+            store.setExpanded(parentHandle, isShow);
+        }
+        final int handle = store.allocate();
+        if (handle >= ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(ids.length * 2, handle + 1));
+            data = Arrays.copyOf(data, ids.length);
+        }
+        ids[handle] = id;
+        data[handle] = nodeData;
+        index.put(id, handle);
+        store.link(parentHandle, handle, before);
+        if (store.isVisible(handle)) {
+            scheduleRefresh();
+        }
+    }
+
+    public synchronized void removeNodeRecursively(final int id) {
+        final int handle = getHandleOrThrowAllowRoot(id);
+        if (handle == IntNodeStore.ROOT) {
+            clear();
+            return;
+        }
+        final boolean visible = store.isVisible(handle);
+        store.unlink(handle);
+        store.freeSubtree(handle, releaser);
+        if (store.shouldCompact()) {
+            compact();
+        }
+        if (visible) {
+            scheduleRefresh();
+        }
+    }
+
+    /**
+     * Moves the node with its subtree below the new parent.
+     *
+     * @param id            node to move
+     * @param newParent     new parent or NO_ID for the top level
+     * @param beforeSibling child of the new parent to insert before, NO_ID
+     *                      appends
+     */
+    public synchronized void moveSubtree(final int id, final int newParent, final int beforeSibling) {
+        final int handle = getHandleOrThrow(id);
+        final int parentHandle = getHandleOrThrowAllowRoot(newParent);
+        for (int n = parentHandle; n != IntNodeStore.NONE; n = store.getParent(n)) {
+            if (n == handle) {
+                throw new TreeConfigurationException("Trying to move " + id
+                        + " below its own subtree (" + newParent + ")");
+            }
+        }
+        int before = beforeSibling == NO_ID ? IntNodeStore.NONE : index.get(beforeSibling);
+        if (before == handle) {
+            return;
+        }
+        if (before == -1 || store.getParent(before) != parentHandle) {
+            before = IntNodeStore.NONE;
+        }
+        final boolean wasExpanded = store.isExpanded(store.getParent(handle));
+        store.unlink(handle);
+        if (store.getChildCount(parentHandle) == 0) {
+            store.setExpanded(parentHandle, wasExpanded);
+        }
+        store.link(parentHandle, handle, before);
+        scheduleRefresh();
+    }
+
+    public synchronized void expandDirectChildren(final int id) {
+        store.setExpanded(getHandleOrThrowAllowRoot(id), true);
+        scheduleRefresh();
+    }
+
+    public synchronized void expandEverythingBelow(final int id) {
+        store.expandAll(getHandleOrThrowAllowRoot(id));
+        scheduleRefresh();
+    }
+
+    public synchronized void collapseChildren(final int id) {
+        store.collapse(getHandleOrThrowAllowRoot(id));
+        scheduleRefresh();
+    }
+
+    public synchronized boolean isInTree(final int id) {
+        return index.get(id) != -1;
+    }
+
+    public synchronized int getParent(final int id) {
+        return idOf(store.getParent(getHandleOrThrow(id)));
+    }
+
+    public synchronized int getLevel(final int id) {
+        return store.getLevel(getHandleOrThrow(id));
+    }
+
+    public synchronized Object getData(final int id) {
+        return data[getHandleOrThrow(id)];
+    }
+
+    public synchronized void updateNodeData(final int id, final Object nodeData) {
+        final int handle = getHandleOrThrow(id);
+        data[handle] = nodeData;
+        if (store.isVisible(handle)) {
+            scheduleRefresh();
+        }
+    }
+
+    public synchronized int getChildCount(final int id) {
+        return store.getChildCount(getHandleOrThrowAllowRoot(id));
+    }
+
+    public synchronized boolean hasChildren(final int id) {
+        return getChildCount(id) > 0;
+    }
+
+    public synchronized int getFirstChild(final int id) {
+        return idOf(store.getFirstChild(getHandleOrThrowAllowRoot(id)));
+    }
+
+    public synchronized int getLastChild(final int id) {
+        return idOf(store.getLastChild(getHandleOrThrowAllowRoot(id)));
+    }
+
+    public synchronized int getNextSibling(final int id) {
+        return idOf(store.getNextSibling(getHandleOrThrow(id)));
+    }
+
+    public synchronized int getPreviousSibling(final int id) {
+        return idOf(store.getPreviousSibling(getHandleOrThrow(id)));
+    }
+
+    public synchronized boolean isLastChild(final int id) {
+        return store.getNextSibling(getHandleOrThrow(id)) == IntNodeStore.NONE;
+    }
+
+    /**
+     * Whether the children of the node are shown below it.
+     */
+    public synchronized boolean isExpanded(final int id) {
+        final int handle = getHandleOrThrow(id);
+        return store.getChildCount(handle) > 0 && store.isExpanded(handle);
+    }
+
+    public synchronized boolean isVisible(final int id) {
+        return store.isVisible(getHandleOrThrow(id));
+    }
+
+    public synchronized int getVisibleCount() {
+        return store.getVisibleCount();
+    }
+
+    public synchronized int getVisibleIdAt(final int position) {
+        return idOf(store.getHandleAt(position));
+    }
+
+    public synchronized int getVisiblePosition(final int id) {
+        return store.getPosition(getHandleOrThrow(id));
+    }
+
+    /**
+     * Next node in the visible list.
+     *
+     * @param id node or NO_ID for the first visible node
+     * @return next visible node or NO_ID
+     */
+    public synchronized int getNextVisible(final int id) {
+        final int handle = getHandleOrThrowAllowRoot(id);
+        if (handle != IntNodeStore.ROOT && !store.isVisible(handle)) {
+            return NO_ID;
+        }
+        if (store.isExpanded(handle) && store.getFirstChild(handle) != IntNodeStore.NONE) {
+            return idOf(store.getFirstChild(handle));
+        }
+        for (int node = handle; node != IntNodeStore.ROOT && node != IntNodeStore.NONE;
+             node = store.getParent(node)) {
+            if (store.getNextSibling(node) != IntNodeStore.NONE) {
+                return idOf(store.getNextSibling(node));
+            }
+        }
+        return NO_ID;
+    }
+
+    /**
+     * Renumbers the nodes densely after many removals and shrinks the
+     * columns. Called automatically once most handles are free.
+     */
+    public synchronized void compact() {
+        final int[] newHandles = store.compact();
+        final int[] newIds = new int[Math.max(16, store.getHighWater() + store.getHighWater() / 2)];
+        final Object[] newData = new Object[newIds.length];
+        for (int old = 0; old < newHandles.length; old++) {
+            final int handle = newHandles[old];
+            if (handle != IntNodeStore.NONE) {
+                newIds[handle] = ids[old];
+                newData[handle] = data[old];
+            }
+        }
+        ids = newIds;
+        data = newData;
+        index.clear();
+        for (int handle = 1; handle < store.getHighWater(); handle++) {
+            index.put(ids[handle], handle);
+        }
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized void clear() {
+        store.clear();
+        index.clear();
+        Arrays.fill(data, null);
+        scheduleRefresh();
+    }
+
+    public synchronized void refresh() {
+        scheduleRefresh();
+    }
+
+    public synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    public synchronized void commit() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("commit() called without beginBatch()");
+        }
+        batchDepth--;
+        if (batchDepth == 0 && batchChanged) {
+            batchChanged = false;
+            scheduleRefresh();
+        }
+    }
+
+    public void runBatch(final Runnable mutations) {
+        beginBatch();
+        try {
+            mutations.run();
+        } finally {
+            commit();
+        }
+    }
+
+    public synchronized void setRefreshPolicy(final RefreshPolicy refreshPolicy) {
+        this.refreshPolicy = refreshPolicy;
+    }
+
+    public synchronized void registerDataSetObserver(final DataSetObserver observer) {
+        if (!observers.contains(observer)) {
+            observers.add(observer);
+        }
+    }
+
+    public synchronized void unregisterDataSetObserver(final DataSetObserver observer) {
+        observers.remove(observer);
+    }
+
+    private void scheduleRefresh() {
+        if (batchDepth > 0) {
+            batchChanged = true;
+            return;
+        }
+        if (refreshScheduled) {
+            return;
+        }
+        refreshScheduled = true;
+        refreshPolicy.schedule(refreshRunnable);
+    }
+
+    private void dispatchRefresh() {
+        final List<DataSetObserver> currentObservers;
+        synchronized (this) {
+            refreshScheduled = false;
+            currentObservers = new ArrayList<DataSetObserver>(observers);
+        }
+        for (final DataSetObserver observer : currentObservers) {
+            observer.onChanged();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.treeviewlist;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Registry of all nodes of the tree by their id. Uses open addressing with
+ * linear probing over two parallel arrays, so there is no entry object per
+ * node and lookups cost a hash and usually a single equals call. Removal
+ * shifts the following entries back instead of leaving tombstones, so the
+ * table never degrades after many removals. Not thread safe - the manager
+ * guards it with its own monitor.
+ * <p>
+ * Slots depend on the hash codes of the ids, which need not be the same in
+ * another process (enums, identity hashes), so the table is serialized as
+ * its entries and rebuilt when read like {@link java.util.HashMap} does.
+ *
+ * @param <T> type of the identifier used by the tree
+ */
+final class NodeIndex<T> implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_CAPACITY = 16;
+
+    private transient Object[] keys = new Object[MIN_CAPACITY];
+    private transient Object[] nodes = new Object[MIN_CAPACITY];
+    private transient int size;
+
+    /**
+     * Finds the node with the id given.
+     *
+     * @param id id of the node
+     * @return the node or null if there is no node with the id
+     */
+    @SuppressWarnings("unchecked")
+    InMemoryTreeNode<T> get(final Object id) {
+        if (id == null) {
+            return null;
+        }
+        final Object[] k = keys;
+        final int mask = k.length - 1;
+        for (int i = slot(id, mask); ; i = (i + 1) & mask) {
+            final Object key = k[i];
+            if (key == null) {
+                return null;
+            }
+            if (key == id || key.equals(id)) {
+                return (InMemoryTreeNode<T>) nodes[i];
+            }
+        }
+    }
+
+    boolean containsKey(final Object id) {
+        return get(id) != null;
+    }
+
+    /**
+     * Registers the node under its id, replacing a node registered before.
+     *
+     * @param id   id of the node
+     * @param node the node
+     */
+    void put(final T id, final InMemoryTreeNode<T> node) {
+        if (id == null) {
+            throw new NullPointerException("Node id can not be null");
+        }
+        // keep the load factor at or below one half so probe chains stay short
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        final int mask = keys.length - 1;
+        int i = slot(id, mask);
+        for (Object key = keys[i]; key != null; key = keys[i]) {
+            if (key == id || key.equals(id)) {
+                nodes[i] = node;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = id;
+        nodes[i] = node;
+        size++;
+    }
+
+    /**
+     * Unregisters the node with the id given.
+     *
+     * @param id id of the node
+     */
+    void remove(final Object id) {
+        if (id == null) {
+            return;
+        }
+        final int mask = keys.length - 1;
+        int i = slot(id, mask);
+        for (Object key = keys[i]; ; key = keys[i]) {
+            if (key == null) {
+                return;
+            }
+            if (key == id || key.equals(id)) {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        // backward shift: move up every following entry whose home slot is
+        // not between the hole and its current slot
+        int hole = i;
+        for (int j = (hole + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            final int home = slot(keys[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                nodes[hole] = nodes[j];
+                hole = j;
+            }
+        }
+        keys[hole] = null;
+        nodes[hole] = null;
+        size--;
+    }
+
+    void clear() {
+        if (keys.length > MIN_CAPACITY) {
+            keys = new Object[MIN_CAPACITY];
+            nodes = new Object[MIN_CAPACITY];
+        } else {
+            Arrays.fill(keys, null);
+            Arrays.fill(nodes, null);
+        }
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void resize(final int capacity) {
+        final Object[] oldKeys = keys;
+        final Object[] oldNodes = nodes;
+        keys = new Object[capacity];
+        nodes = new Object[capacity];
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            final Object key = oldKeys[j];
+            if (key == null) {
+                continue;
+            }
+            int i = slot(key, mask);
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            nodes[i] = oldNodes[j];
+        }
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                out.writeObject(keys[i]);
+                out.writeObject(nodes[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(final ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        final int count = in.readInt();
+        int capacity = MIN_CAPACITY;
+        while (capacity < count * 2) {
+            capacity *= 2;
+        }
+        keys = new Object[capacity];
+        nodes = new Object[capacity];
+        size = 0;
+        for (int i = 0; i < count; i++) {
+            put((T) in.readObject(), (InMemoryTreeNode<T>) in.readObject());
+        }
+    }
+
+    private static int slot(final Object key, final int mask) {
+        final int h = key.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
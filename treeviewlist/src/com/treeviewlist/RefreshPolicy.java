@@ -0,0 +1,105 @@
+package com.treeviewlist;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Decides when the tree state manager delivers a pending refresh to its
+ * adapter and observers. The manager schedules at most one refresh at a time,
+ * so every mutation made before the refresh runs is collapsed into it.
+ */
+public abstract class RefreshPolicy {
+
+    /**
+     * Schedules the refresh. Called at most once until the refresh runs.
+     *
+     * @param refresh refresh to run
+     */
+    public abstract void schedule(Runnable refresh);
+
+    /**
+     * Refreshes on the next frame of the main thread, so all mutations made
+     * within one vsync end up in one adapter refresh. Falls back to posting on
+     * the main thread before Jelly Bean.
+     *
+     * @return frame-aligned policy
+     */
+    public static RefreshPolicy frameAligned() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return new FramePolicy();
+        }
+        return new MainThreadPolicy();
+    }
+
+    /**
+     * Refreshes synchronously in the thread which changed the tree.
+     *
+     * @return immediate policy
+     */
+    public static RefreshPolicy immediate() {
+        return new RefreshPolicy() {
+            @Override
+            public void schedule(final Runnable refresh) {
+                refresh.run();
+            }
+        };
+    }
+
+    /**
+     * Refreshes through the executor given. The executor has to run the
+     * refresh on the thread owning the adapter.
+     *
+     * @param executor executor delivering the refresh
+     * @return executor policy
+     */
+    public static RefreshPolicy executor(final Executor executor) {
+        return new RefreshPolicy() {
+            @Override
+            public void schedule(final Runnable refresh) {
+                executor.execute(refresh);
+            }
+        };
+    }
+
+    private static class MainThreadPolicy extends RefreshPolicy {
+        protected final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void schedule(final Runnable refresh) {
+            handler.post(refresh);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class FramePolicy extends MainThreadPolicy {
+        private Choreographer choreographer;
+
+        @Override
+        public void schedule(final Runnable refresh) {
+            if (Looper.myLooper() != Looper.getMainLooper()) {
+                // Choreographer is bound to the looper it is obtained on
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        schedule(refresh);
+                    }
+                });
+                return;
+            }
+            if (choreographer == null) {
+                choreographer = Choreographer.getInstance();
+            }
+            choreographer.postFrameCallback(new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(final long frameTimeNanos) {
+                    refresh.run();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.treeviewlist;
+
+/**
+ * Folds the data of a whole subtree into one value, kept up to date by
+ * {@link InMemoryTreeStateManager} once registered with
+ * {@link InMemoryTreeStateManager#registerReducer(SubtreeReducer)}.
+ * <p>
+ * The value of a subtree is the node's own value combined with the values
+ * of its children in child order, so the combination has to be associative
+ * but need not be commutative. Changing a node recombines the values of its
+ * ancestors only.
+ *
+ * <pre>
+ * final SubtreeReducer&lt;Integer&gt; groups = new SubtreeReducer&lt;Integer&gt;() {
+ *     public Integer map(Object data) {
+ *         return ((ItemEntity) data).getGroupName() != null ? 1 : 0;
+ *     }
+ *
+ *     public Integer combine(Integer left, Integer right) {
+ *         return left + right;
+ *     }
+ * };
+ * </pre>
+ *
+ * @param <V> type of the values
+ */
+public interface SubtreeReducer<V> {
+
+    /**
+     * Value of a single node.
+     *
+     * @param data data of the node, may be null
+     * @return value of the node
+     */
+    V map(Object data);
+
+    /**
+     * Combines two values, the left one coming first in the tree.
+     *
+     * @param left  value of the earlier nodes
+     * @param right value of the later nodes
+     * @return combined value
+     */
+    V combine(V left, V right);
+}
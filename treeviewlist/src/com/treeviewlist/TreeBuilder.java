@@ -2,6 +2,15 @@ package com.treeviewlist;
 
 import android.util.Log;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 /**
  * Allows to build tree easily in sequential mode (you have to know levels of
  * all the tree elements upfront). You should rather use this class rather than
@@ -10,16 +19,52 @@ import android.util.Log;
  * Note, that all ids must be unique. IDs are used to find nodes in the whole
  * tree, so they cannot repeat even if they are in different 
  * sub-trees. 
+ * <p>
+ * When adding many nodes, wrap the calls in
+ * {@link TreeStateManager#runBatch(Runnable)} so views are refreshed once.
+ * <p>
+ * A whole tree known upfront is better loaded at once with one of the
+ * {@code bulkLoad} methods: the nodes are created directly, top level
+ * subtrees can be built in parallel, and an {@link InMemoryTreeStateManager}
+ * receives the finished subtrees with a single notification.
  * 
  * @param <T>
  */
 public class TreeBuilder<T> {
     private static final String TAG = TreeBuilder.class.getSimpleName();
+    private static final int TASKS_PER_PROCESSOR = 4;
+
+    /**
+     * Describes the elements of a hierarchy loaded by
+     * {@link #bulkLoad(List, Hierarchy, boolean, ExecutorService)}.
+     *
+     * @param <E> type of the elements
+     * @param <T> type of the identifier used by the tree
+     */
+    public interface Hierarchy<E, T> {
+        T getId(E element);
+
+        Object getData(E element);
+
+        List<E> getChildren(E element);
+    }
+
+    /**
+     * Builds the detached subtrees of the top level elements from one to
+     * another.
+     */
+    private interface SubtreeFactory<T> {
+        List<InMemoryTreeNode<T>> build(int fromRoot, int toRoot);
+    }
 
     private final TreeStateManager<T> manager;
 
     private T lastAddedId = null;
     private int lastLevel = -1;
+    // the last added node and its ancestors by level, rebuilt from the
+    // manager only after nodes were added otherwise
+    private final List<T> path = new ArrayList<T>();
+    private boolean pathValid = true;
 
     public TreeBuilder(final TreeStateManager<T> manager) {
         this.manager = manager;
@@ -29,6 +74,8 @@ public class TreeBuilder<T> {
         manager.clear();
         lastAddedId = null;
         lastLevel = -1;
+        path.clear();
+        pathValid = true;
     }
 
     /**
@@ -48,6 +95,7 @@ public class TreeBuilder<T> {
         manager.addAfterChild(parent, child, null);
         lastAddedId = child;
         lastLevel = manager.getLevel(child);
+        pathValid = false;
     }
 
     /**
@@ -64,69 +112,323 @@ public class TreeBuilder<T> {
      *            its level
      */
     public synchronized void sequentiallyAddNextNode(final T id, final int level) {
-        Log.d(TAG, "Adding sequentiall node " + id + " at level " + level);
-        if (lastAddedId == null) {
-            addNodeToParentOneLevelDown(null, id, level);
-        } else {
-            if (level <= lastLevel) {
-                final T parent = findParentAtLevel(lastAddedId, level - 1);
-                addNodeToParentOneLevelDown(parent, id, level);
-            } else {
-                addNodeToParentOneLevelDown(lastAddedId, id, level);
-            }
-        }
+        sequentiallyAddNextNode(id, level, null, false);
     }
 
     /**
-     * Find parent of the node at the level specified.
-     * 
-     * @param node
-     *            node from which we start
-     * @param levelToFind
-     *            level which we are looking for
-     * @return the node found (null if it is topmost node).
+     * Adds sequentially new node with its data, see
+     * {@link #sequentiallyAddNextNode(Object, int)}. The parent is taken from
+     * the path of the last added node, so no node is looked up.
+     *
+     * @param id     id of the node
+     * @param level  its level
+     * @param data   data of the node
+     * @param isShow whether children are shown below the parent, decided by
+     *               the first child added to it
      */
-    private T findParentAtLevel(final T node, final int levelToFind) {
-        T parent = manager.getParent(node);
-        while (parent != null) {
-            if (manager.getLevel(parent) == levelToFind) {
-                break;
-            }
-            parent = manager.getParent(parent);
+    public synchronized void sequentiallyAddNextNode(final T id, final int level,
+                                                     final Object data, final boolean isShow) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Adding sequentiall node " + id + " at level " + level);
         }
-        return parent;
-    }
-
-    /**
-     * Adds note to parent at the level specified. But it verifies that the
-     * level is one level down than the parent!
-     * 
-     * @param parent
-     *            parent parent
-     * @param id
-     *            new node id
-     * @param level
-     *            should always be parent's level + 1
-     */
-    private void addNodeToParentOneLevelDown(final T parent, final T id,
-            final int level) {
-        if (parent == null && level != 0) {
+        if (!pathValid) {
+            rebuildPath();
+        }
+        if (level < 0 || (path.isEmpty() && level != 0)) {
             throw new TreeConfigurationException("Trying to add new id " + id
                     + " to top level with level != 0 (" + level + ")");
         }
-        if (parent != null && manager.getLevel(parent) != level - 1) {
+        if (level > path.size()) {
             throw new TreeConfigurationException("Trying to add new id " + id
-                    + " <" + level + "> to " + parent + " <"
-                    + manager.getLevel(parent)
+                    + " <" + level + "> to " + lastAddedId + " <" + lastLevel
                     + ">. The difference in levels up is bigger than 1.");
         }
-        manager.addAfterChild(parent, id, null);
+        final T parent = level == 0 ? null : path.get(level - 1);
+        manager.addAfterChild(parent, id, null, data, isShow);
+        path.subList(level, path.size()).clear();
+        path.add(id);
         setLastAdded(id, level);
     }
 
+    /**
+     * Adds sequentially the nodes given in one batch of the manager, so views
+     * are refreshed once for all of them.
+     *
+     * @param ids    ids of the nodes
+     * @param levels levels of the nodes, only the first ids.size() are read
+     * @param data   data of the nodes or null
+     * @param isShow whether children are shown below their parents
+     */
+    public void sequentiallyAddNextNodes(final List<T> ids, final int[] levels,
+                                         final List<?> data, final boolean isShow) {
+        manager.runBatch(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ids.size(); i++) {
+                    sequentiallyAddNextNode(ids.get(i), levels[i],
+                            data == null ? null : data.get(i), isShow);
+                }
+            }
+        });
+    }
+
+    private void rebuildPath() {
+        path.clear();
+        for (T node = lastAddedId; node != null; node = manager.getParent(node)) {
+            path.add(node);
+        }
+        Collections.reverse(path);
+        pathValid = true;
+    }
+
     private void setLastAdded(final T id, final int level) {
         lastAddedId = id;
         lastLevel = level;
     }
 
+    /**
+     * Appends the nodes given in pre-order (as displayed in a fully expanded
+     * tree) to the top level. The sequence starts at level 0 and every level
+     * is at most one deeper than the previous one.
+     *
+     * @param ids      ids of the nodes
+     * @param levels   levels of the nodes
+     * @param data     data of the nodes or null
+     * @param expanded whether children are shown below their parents
+     * @param executor executor building the top level subtrees in parallel,
+     *                 null builds them on the calling thread
+     */
+    public synchronized void bulkLoad(final List<T> ids, final int[] levels, final List<?> data,
+                                      final boolean expanded, final ExecutorService executor) {
+        if (ids.size() != levels.length || (data != null && data.size() != ids.size())) {
+            throw new TreeConfigurationException("Ids, levels and data differ in size");
+        }
+        final List<Integer> starts = new ArrayList<Integer>();
+        for (int i = 0; i < levels.length; i++) {
+            if (levels[i] == 0) {
+                starts.add(i);
+            } else if (i == 0 || levels[i] < 0) {
+                throw new TreeConfigurationException("Trying to add new id " + ids.get(i)
+                        + " to top level with level != 0 (" + levels[i] + ")");
+            }
+        }
+        starts.add(levels.length);
+        final int childTypeCount = childTypeCount();
+        publish(build(starts.size() - 1, new SubtreeFactory<T>() {
+            @Override
+            public List<InMemoryTreeNode<T>> build(final int fromRoot, final int toRoot) {
+                return buildSequence(ids, levels, data, expanded, childTypeCount,
+                        starts.get(fromRoot), starts.get(toRoot));
+            }
+        }, executor), expanded);
+    }
+
+    /**
+     * Appends the elements of a hierarchy, each with its whole subtree, to
+     * the top level.
+     *
+     * @param roots     top level elements
+     * @param hierarchy ids, data and children of the elements
+     * @param expanded  whether children are shown below their parents
+     * @param executor  executor building the top level subtrees in parallel,
+     *                  null builds them on the calling thread
+     * @param <E>       type of the elements
+     */
+    public synchronized <E> void bulkLoad(final List<E> roots, final Hierarchy<E, T> hierarchy,
+                                          final boolean expanded, final ExecutorService executor) {
+        final int childTypeCount = childTypeCount();
+        publish(build(roots.size(), new SubtreeFactory<T>() {
+            @Override
+            public List<InMemoryTreeNode<T>> build(final int fromRoot, final int toRoot) {
+                final List<InMemoryTreeNode<T>> built = new ArrayList<InMemoryTreeNode<T>>();
+                for (int i = fromRoot; i < toRoot; i++) {
+                    built.add(buildHierarchy(roots.get(i), hierarchy, expanded, childTypeCount));
+                }
+                return built;
+            }
+        }, executor), expanded);
+    }
+
+    /**
+     * Builds the subtrees of the sequence from one top level node to
+     * another, keeping the path to the last node on a stack of levels. A
+     * node is appended to its parent once all its children are.
+     */
+    private static <T> List<InMemoryTreeNode<T>> buildSequence(
+            final List<T> ids, final int[] levels, final List<?> data, final boolean expanded,
+            final int childTypeCount, final int from, final int to) {
+        final List<InMemoryTreeNode<T>> roots = new ArrayList<InMemoryTreeNode<T>>();
+        final List<InMemoryTreeNode<T>> path = new ArrayList<InMemoryTreeNode<T>>();
+        for (int i = from; i < to; i++) {
+            final int level = levels[i];
+            if (level > path.size()) {
+                throw new TreeConfigurationException("Trying to add new id " + ids.get(i)
+                        + " <" + level + "> to " + path.get(path.size() - 1).getId() + " <"
+                        + (path.size() - 1) + ">. The difference in levels up is bigger than 1.");
+            }
+            while (path.size() > level) {
+                finish(path, roots, expanded);
+            }
+            final InMemoryTreeNode<T> node = new InMemoryTreeNode<T>(ids.get(i),
+                    level == 0 ? null : path.get(level - 1).getId(), level, true, childTypeCount, 0);
+            node.setData(data == null ? null : data.get(i));
+            path.add(node);
+        }
+        while (!path.isEmpty()) {
+            finish(path, roots, expanded);
+        }
+        return roots;
+    }
+
+    private static <T> void finish(final List<InMemoryTreeNode<T>> path,
+                                   final List<InMemoryTreeNode<T>> roots, final boolean expanded) {
+        final InMemoryTreeNode<T> node = path.remove(path.size() - 1);
+        if (path.isEmpty()) {
+            node.relinkRows();
+            roots.add(node);
+        } else {
+            path.get(path.size() - 1).appendBuilt(node, expanded);
+        }
+    }
+
+    /**
+     * Builds the subtree of one element, walking the hierarchy with an
+     * explicit stack so its depth does not matter.
+     */
+    private static <E, T> InMemoryTreeNode<T> buildHierarchy(final E root,
+                                                             final Hierarchy<E, T> hierarchy,
+                                                             final boolean expanded,
+                                                             final int childTypeCount) {
+        final ArrayDeque<HierarchyLevel<E, T>> levels = new ArrayDeque<HierarchyLevel<E, T>>();
+        final InMemoryTreeNode<T> top = new InMemoryTreeNode<T>(hierarchy.getId(root), null, 0,
+                true, childTypeCount, 0);
+        top.setData(hierarchy.getData(root));
+        levels.push(new HierarchyLevel<E, T>(top, hierarchy.getChildren(root)));
+        while (true) {
+            final HierarchyLevel<E, T> level = levels.peek();
+            if (level.children == null || level.next == level.children.size()) {
+                levels.pop();
+                if (levels.isEmpty()) {
+                    break;
+                }
+                levels.peek().node.appendBuilt(level.node, expanded);
+                continue;
+            }
+            final E element = level.children.get(level.next++);
+            final InMemoryTreeNode<T> node = new InMemoryTreeNode<T>(hierarchy.getId(element),
+                    level.node.getId(), level.node.getLevel() + 1, true, childTypeCount, 0);
+            node.setData(hierarchy.getData(element));
+            levels.push(new HierarchyLevel<E, T>(node, hierarchy.getChildren(element)));
+        }
+        top.relinkRows();
+        return top;
+    }
+
+    /**
+     * One level of the walk of {@link #buildHierarchy}.
+     */
+    private static final class HierarchyLevel<E, T> {
+        final InMemoryTreeNode<T> node;
+        final List<E> children;
+        int next;
+
+        HierarchyLevel(final InMemoryTreeNode<T> node, final List<E> children) {
+            this.node = node;
+            this.children = children;
+        }
+    }
+
+    /**
+     * Builds the subtrees of all top level nodes, split in a few tasks per
+     * processor when an executor is given. The subtrees are detached, so
+     * the tasks share nothing.
+     */
+    private static <T> List<InMemoryTreeNode<T>> build(final int rootCount,
+                                                       final SubtreeFactory<T> factory,
+                                                       final ExecutorService executor) {
+        final int tasks = Math.min(rootCount,
+                TASKS_PER_PROCESSOR * Runtime.getRuntime().availableProcessors());
+        if (executor == null || tasks <= 1) {
+            return factory.build(0, rootCount);
+        }
+        final List<Callable<List<InMemoryTreeNode<T>>>> callables =
+                new ArrayList<Callable<List<InMemoryTreeNode<T>>>>();
+        for (int task = 0; task < tasks; task++) {
+            final int from = (int) ((long) rootCount * task / tasks);
+            final int to = (int) ((long) rootCount * (task + 1) / tasks);
+            callables.add(new Callable<List<InMemoryTreeNode<T>>>() {
+                @Override
+                public List<InMemoryTreeNode<T>> call() {
+                    return factory.build(from, to);
+                }
+            });
+        }
+        final List<InMemoryTreeNode<T>> roots = new ArrayList<InMemoryTreeNode<T>>(rootCount);
+        try {
+            for (final Future<List<InMemoryTreeNode<T>>> future : executor.invokeAll(callables)) {
+                roots.addAll(future.get());
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building the tree", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return roots;
+    }
+
+    private int childTypeCount() {
+        return manager instanceof InMemoryTreeStateManager
+                ? ((InMemoryTreeStateManager<T>) manager).getChildTypeCount() : 1;
+    }
+
+    /**
+     * Hands the built subtrees to the manager, at once to an in-memory
+     * manager, node by node in one batch to others.
+     */
+    @SuppressWarnings("unchecked")
+    private void publish(final List<InMemoryTreeNode<T>> roots, final boolean expanded) {
+        if (roots.isEmpty()) {
+            return;
+        }
+        if (manager instanceof InMemoryTreeStateManager) {
+            ((InMemoryTreeStateManager<T>) manager).attachSubtrees(roots, true);
+        } else {
+            manager.runBatch(new Runnable() {
+                @Override
+                public void run() {
+                    addNodes(roots, expanded);
+                }
+            });
+        }
+        InMemoryTreeNode<T> last = roots.get(roots.size() - 1);
+        while (last.getChildCount() > 0) {
+            last = last.getChildAt(last.getChildCount() - 1);
+        }
+        setLastAdded(last.getId(), last.getLevel());
+        pathValid = false;
+    }
+
+    private void addNodes(final List<InMemoryTreeNode<T>> roots, final boolean expanded) {
+        final ArrayDeque<InMemoryTreeNode<T>> stack = new ArrayDeque<InMemoryTreeNode<T>>();
+        for (final InMemoryTreeNode<T> root : roots) {
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                final InMemoryTreeNode<T> node = stack.pop();
+                final InMemoryTreeNode<T> parent = node.getParentNode();
+                manager.addAfterChild(parent == null ? null : parent.getId(), node.getId(), null,
+                        node.getData(), expanded);
+                for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                    stack.push(node.getChildAt(i));
+                }
+            }
+        }
+    }
+
 }
@@ -0,0 +1,47 @@
+package com.treeviewlist;
+
+/**
+ * Receives changes of the visible list of the tree. Changes are delivered in
+ * the order they were made when the manager dispatches its refresh; every
+ * position is relative to the list as it was after the previous change.
+ */
+public interface TreeChangeListener {
+
+    /**
+     * Rows were inserted.
+     *
+     * @param position position of the first inserted row
+     * @param count    number of inserted rows
+     */
+    void onRowsInserted(int position, int count);
+
+    /**
+     * Rows were removed.
+     *
+     * @param position position of the first removed row
+     * @param count    number of removed rows
+     */
+    void onRowsRemoved(int position, int count);
+
+    /**
+     * A block of rows (a node with its visible descendants) was moved.
+     *
+     * @param fromPosition position of the first row before the move
+     * @param toPosition   position of the first row after the move
+     * @param count        number of moved rows
+     */
+    void onRowsMoved(int fromPosition, int toPosition, int count);
+
+    /**
+     * Data of rows changed in place, the structure is the same.
+     *
+     * @param position position of the first changed row
+     * @param count    number of changed rows
+     */
+    void onRowsChanged(int position, int count);
+
+    /**
+     * The whole visible list has to be considered changed.
+     */
+    void onTreeChanged();
+}
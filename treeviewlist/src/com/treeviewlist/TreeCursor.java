@@ -0,0 +1,195 @@
+package com.treeviewlist;
+
+/**
+ * Reusable cursor walking the nodes of an {@link InMemoryTreeStateManager}.
+ * It steps along the parent and sibling links of the nodes (the row links in
+ * visible order), so moving to the next node needs neither a stack nor any
+ * allocation, whatever the depth of the tree. The current node is read through the getters, which expose the
+ * node fields directly instead of creating a {@link TreeNodeInfo} per node.
+ * <p>
+ * A cursor reads the live tree and is not thread safe. The tree must not be
+ * changed during a walk, e.g. walk inside a batch of the manager or while
+ * holding its lock.
+ *
+ * <pre>
+ * final TreeCursor&lt;String&gt; cursor = manager.newCursor();
+ * cursor.reset(TreeCursor.Order.PRE_ORDER, null);
+ * while (cursor.moveToNext()) {
+ *     visit(cursor.getId(), cursor.getLevel(), cursor.getData());
+ * }
+ * </pre>
+ *
+ * @param <T> type of the identifier used by the tree
+ */
+public final class TreeCursor<T> {
+
+    /**
+     * Order in which the cursor visits the nodes.
+     */
+    public enum Order {
+        /**
+         * Every node before its children, children in visible order.
+         */
+        PRE_ORDER,
+        /**
+         * Every node after its children.
+         */
+        POST_ORDER,
+        /**
+         * Shown nodes only, in the order of the visible list. Collapsed
+         * children are skipped together with their subtrees.
+         */
+        VISIBLE
+    }
+
+    private final InMemoryTreeStateManager<T> manager;
+    private Order order = Order.PRE_ORDER;
+    private InMemoryTreeNode<T> root;
+    private InMemoryTreeNode<T> current;
+    private InMemoryTreeNode<T> lastRow;
+    private boolean started;
+
+    TreeCursor(final InMemoryTreeStateManager<T> manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Starts a new walk of the subtree. The node itself is part of the walk,
+     * in visible order only when it is shown.
+     *
+     * @param order order of the walk
+     * @param id    root of the walk or null for the whole tree
+     * @return this cursor
+     */
+    public TreeCursor<T> reset(final Order order, final T id) {
+        final InMemoryTreeNode<T> node = id == null
+                ? manager.getTopSentinel() : manager.getInmemoryTreeNode(id);
+        if (node == null) {
+            throw new NodeNotInTreeException(String.valueOf(id));
+        }
+        this.order = order;
+        this.root = node;
+        this.current = null;
+        this.lastRow = null;
+        this.started = false;
+        return this;
+    }
+
+    /**
+     * Moves to the next node of the walk.
+     *
+     * @return false when the walk is over
+     */
+    public boolean moveToNext() {
+        if (root == null) {
+            throw new IllegalStateException("reset() has to be called before the walk");
+        }
+        if (!started) {
+            started = true;
+            current = first();
+        } else if (current != null) {
+            current = next(current);
+        }
+        return current != null;
+    }
+
+    private InMemoryTreeNode<T> first() {
+        final boolean sentinel = root.getId() == null;
+        switch (order) {
+            case POST_ORDER:
+                final InMemoryTreeNode<T> leaf = firstLeaf(root);
+                return leaf == root && sentinel ? null : leaf;
+            case VISIBLE:
+                if (sentinel) {
+                    return root.getNextRow();
+                }
+                lastRow = root.getLastRow();
+                return root.isVisible() ? root : null;
+            default:
+                if (sentinel) {
+                    return root.getChildCount() == 0 ? null : root.getChildAt(0);
+                }
+                return root;
+        }
+    }
+
+    private InMemoryTreeNode<T> next(final InMemoryTreeNode<T> node) {
+        switch (order) {
+            case POST_ORDER:
+                if (node == root) {
+                    return null;
+                }
+                final InMemoryTreeNode<T> parent = node.getParentNode();
+                final InMemoryTreeNode<T> sibling = parent.getNextChild(node);
+                if (sibling != null) {
+                    return firstLeaf(sibling);
+                }
+                return parent == root && root.getId() == null ? null : parent;
+            case VISIBLE:
+                return node == lastRow ? null : node.getNextRow();
+            default:
+                if (node.getChildCount() > 0) {
+                    return node.getChildAt(0);
+                }
+                for (InMemoryTreeNode<T> n = node; n != root; n = n.getParentNode()) {
+                    final InMemoryTreeNode<T> next = n.getParentNode().getNextChild(n);
+                    if (next != null) {
+                        return next;
+                    }
+                }
+                return null;
+        }
+    }
+
+    private static <T> InMemoryTreeNode<T> firstLeaf(final InMemoryTreeNode<T> node) {
+        InMemoryTreeNode<T> leaf = node;
+        while (leaf.getChildCount() > 0) {
+            leaf = leaf.getChildAt(0);
+        }
+        return leaf;
+    }
+
+    private InMemoryTreeNode<T> currentOrThrow() {
+        if (current == null) {
+            throw new IllegalStateException("The cursor is not on a node");
+        }
+        return current;
+    }
+
+    public T getId() {
+        return currentOrThrow().getId();
+    }
+
+    public int getLevel() {
+        return currentOrThrow().getLevel();
+    }
+
+    public Object getData() {
+        return currentOrThrow().getData();
+    }
+
+    public int getNodeType() {
+        return currentOrThrow().getNodeType();
+    }
+
+    public boolean hasChildren() {
+        return currentOrThrow().hasChildren();
+    }
+
+    /**
+     * @return whether children of any type are shown below the node
+     */
+    public boolean isExpanded() {
+        return currentOrThrow().hasChildrenExpand();
+    }
+
+    /**
+     * Current node itself, for callers that need more than the getters. The
+     * node stays live, it is not a copy.
+     *
+     * @return current node
+     */
+    public InMemoryTreeNode<T> getNode() {
+        return currentOrThrow();
+    }
+}
@@ -0,0 +1,236 @@
+package com.treeviewlist;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Streams the nodes of an {@link InMemoryTreeStateManager} in pre-order to a
+ * {@link Writer} or a {@link WritableByteChannel}, one record per node. The
+ * walk uses a {@link TreeCursor}, records are written through one reusable
+ * buffer and the hierarchy and visibility of the current path are kept on
+ * reusable stacks, so nothing is allocated per node besides the text of ids
+ * and data. The whole tree or one subtree can be exported.
+ * <p>
+ * The manager is locked during the export, so the records show one
+ * consistent state of the tree.
+ *
+ * @param <T> type of the identifier used by the tree
+ */
+public class TreeExporter<T> {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 8192;
+    private static final int INDENT = 4;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Form of the records.
+     */
+    public enum Format {
+        /**
+         * The lines of {@link InMemoryTreeStateManager#toString()}: indented
+         * node info followed by the hierarchy description.
+         */
+        TEXT,
+        /**
+         * One JSON object per line with id, parent, level, type, hierarchy,
+         * flags and the data as a string.
+         */
+        JSON_LINES
+    }
+
+    private final InMemoryTreeStateManager<T> manager;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int length;
+    private Writer out;
+    private int[] hierarchy = new int[16];
+    private boolean[] visible = new boolean[16];
+
+    public TreeExporter(final InMemoryTreeStateManager<T> manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Writes the records of the subtree. The writer is flushed, not closed.
+     *
+     * @param writer output
+     * @param root   root of the subtree, null for the whole tree
+     * @param format form of the records
+     * @return number of records written
+     * @throws IOException when writing fails
+     */
+    public synchronized int export(final Writer writer, final T root, final Format format)
+            throws IOException {
+        out = writer;
+        length = 0;
+        try {
+            final int count;
+            synchronized (manager) {
+                count = writeRecords(root, format);
+            }
+            flushBuffer();
+            writer.flush();
+            return count;
+        } finally {
+            out = null;
+        }
+    }
+
+    /**
+     * Writes the records of the subtree in UTF-8. The channel is not closed.
+     *
+     * @param channel output
+     * @param root    root of the subtree, null for the whole tree
+     * @param format  form of the records
+     * @return number of records written
+     * @throws IOException when writing fails
+     */
+    public int export(final WritableByteChannel channel, final T root, final Format format)
+            throws IOException {
+        return export(Channels.newWriter(channel, UTF_8.newEncoder(), BUFFER_SIZE), root, format);
+    }
+
+    private int writeRecords(final T root, final Format format) throws IOException {
+        final TreeCursor<T> cursor = manager.newCursor().reset(TreeCursor.Order.PRE_ORDER, root);
+        if (!cursor.moveToNext()) {
+            return 0;
+        }
+        // path from the top to the root of the export, later levels follow the walk
+        final InMemoryTreeNode<T> first = cursor.getNode();
+        final int rootLevel = first.getLevel();
+        ensureDepth(rootLevel + 1);
+        for (InMemoryTreeNode<T> node = first; node.getId() != null; node = node.getParentNode()) {
+            hierarchy[node.getLevel()] = node.getIndexInParent();
+        }
+        int count = 0;
+        do {
+            final InMemoryTreeNode<T> node = cursor.getNode();
+            final int level = node.getLevel();
+            ensureDepth(level + 1);
+            hierarchy[level] = node.getIndexInParent();
+            visible[level] = level == rootLevel ? node.isVisible()
+                    : visible[level - 1] && node.getParentNode().isExpanded(node.getNodeType());
+            if (format == Format.TEXT) {
+                writeText(node, level);
+            } else {
+                writeJson(node, level);
+            }
+            count++;
+        } while (cursor.moveToNext());
+        return count;
+    }
+
+    private void ensureDepth(final int depth) {
+        if (depth > hierarchy.length) {
+            final int size = Math.max(depth, hierarchy.length * 2);
+            hierarchy = Arrays.copyOf(hierarchy, size);
+            visible = Arrays.copyOf(visible, size);
+        }
+    }
+
+    private void writeText(final InMemoryTreeNode<T> node, final int level) throws IOException {
+        for (int i = level * INDENT; i > 0; i--) {
+            append(' ');
+        }
+        append("TreeNodeInfo [id=").append(String.valueOf(node.getId()))
+                .append(", level=").append(level)
+                .append(", withChildren=").append(node.hasChildren(0))
+                .append(", visible=").append(visible[level])
+                .append(", expanded=").append(node.isChildrenExpand(0))
+                .append("][");
+        for (int i = 0; i <= level; i++) {
+            if (i > 0) {
+                append(", ");
+            }
+            append(hierarchy[i]);
+        }
+        append("]\n");
+    }
+
+    private void writeJson(final InMemoryTreeNode<T> node, final int level) throws IOException {
+        append("{\"id\":").appendJson(node.getId())
+                .append(",\"parent\":").appendJson(node.getParent())
+                .append(",\"level\":").append(level)
+                .append(",\"type\":").append(node.getNodeType())
+                .append(",\"hierarchy\":[");
+        for (int i = 0; i <= level; i++) {
+            if (i > 0) {
+                append(',');
+            }
+            append(hierarchy[i]);
+        }
+        append("],\"withChildren\":").append(node.hasChildren())
+                .append(",\"expanded\":").append(node.hasChildrenExpand())
+                .append(",\"visible\":").append(visible[level])
+                .append(",\"data\":").appendJson(node.getData())
+                .append("}\n");
+    }
+
+    private TreeExporter<T> append(final char c) throws IOException {
+        if (length == buffer.length) {
+            flushBuffer();
+        }
+        buffer[length++] = c;
+        return this;
+    }
+
+    private TreeExporter<T> append(final String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            append(s.charAt(i));
+        }
+        return this;
+    }
+
+    private TreeExporter<T> append(final boolean b) throws IOException {
+        return append(b ? "true" : "false");
+    }
+
+    private TreeExporter<T> append(final int value) throws IOException {
+        if (value < 0) {
+            append('-');
+            if (value == Integer.MIN_VALUE) {
+                return append("2147483648");
+            }
+            return append(-value);
+        }
+        if (value >= 10) {
+            append(value / 10);
+        }
+        return append((char) ('0' + value % 10));
+    }
+
+    /**
+     * Appends the value as a JSON string, null as null.
+     */
+    private TreeExporter<T> appendJson(final Object value) throws IOException {
+        if (value == null) {
+            return append("null");
+        }
+        final String s = value.toString();
+        append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                append('\\').append(c);
+            } else if (c == '\n') {
+                append("\\n");
+            } else if (c < 0x20) {
+                append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xf])
+                        .append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+            } else {
+                append(c);
+            }
+        }
+        return append('"');
+    }
+
+    private void flushBuffer() throws IOException {
+        if (length > 0) {
+            out.write(buffer, 0, length);
+            length = 0;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.treeviewlist;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams a tree from JSON or CSV into a {@link TreeBuilder}. The input is
+ * read token by token and the nodes are handed to the builder in batches as
+ * soon as they are read, so memory stays bounded by the batch size and the
+ * depth of the tree, whatever the size of the input. The first batch is
+ * small, so the first screen of rows shows up before the import finishes;
+ * later batches grow to keep the refreshes few.
+ * <p>
+ * JSON is an array of node objects (or a single one). The scalar members of
+ * an object are its fields, its children are the objects of the array under
+ * {@link #setChildrenKey(String) the children key}. A node is added as soon
+ * as its children start, so members after the children array are not seen
+ * by the mapper. Other nested values are skipped.
+ * <p>
+ * CSV starts with a header row naming the fields. Rows are the nodes in
+ * pre-order, the {@link #setLevelKey(String) level field} holds their level,
+ * as for {@link TreeBuilder#sequentiallyAddNextNode(Object, int)}. Fields may
+ * be quoted, with doubled quotes inside.
+ * <p>
+ * Imports run on the calling thread, typically a background one; the
+ * manager posts the refreshes to its observers.
+ *
+ * @param <T> type of the identifier used by the tree
+ */
+public class TreeImporter<T> {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int FIRST_BATCH_SIZE = 32;
+    private static final int MAX_BATCH_SIZE = 2048;
+
+    /**
+     * Turns the fields read for a node into its id and data. The map is
+     * reused for the next node once the mapper returns.
+     *
+     * @param <T> type of the identifier used by the tree
+     */
+    public interface NodeMapper<T> {
+        T getId(Map<String, String> fields);
+
+        Object getData(Map<String, String> fields);
+    }
+
+    /**
+     * Told about the nodes added so far, after every batch.
+     */
+    public interface ProgressListener {
+        /**
+         * @param importedCount number of nodes added to the tree
+         */
+        void onNodesImported(int importedCount);
+    }
+
+    private final TreeBuilder<T> builder;
+    private final NodeMapper<T> mapper;
+    private String childrenKey = "children";
+    private String levelKey = "level";
+    private boolean expanded = false;
+    private ProgressListener progressListener;
+
+    private final List<T> batchIds = new ArrayList<T>();
+    private final List<Object> batchData = new ArrayList<Object>();
+    private int[] batchLevels = new int[FIRST_BATCH_SIZE];
+    private int batchSize;
+    private int importedCount;
+
+    public TreeImporter(final TreeBuilder<T> builder, final NodeMapper<T> mapper) {
+        this.builder = builder;
+        this.mapper = mapper;
+    }
+
+    public void setChildrenKey(final String childrenKey) {
+        this.childrenKey = childrenKey;
+    }
+
+    public void setLevelKey(final String levelKey) {
+        this.levelKey = levelKey;
+    }
+
+    /**
+     * @param expanded whether children are shown below their parents
+     */
+    public void setExpanded(final boolean expanded) {
+        this.expanded = expanded;
+    }
+
+    public void setProgressListener(final ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public int importJson(final InputStream in) throws IOException {
+        return importJson(new InputStreamReader(in, UTF_8));
+    }
+
+    /**
+     * Reads the JSON tree and appends it to the top level of the builder.
+     * The reader is not closed.
+     *
+     * @param reader JSON input
+     * @return number of nodes added
+     * @throws IOException when reading fails or the JSON is malformed
+     */
+    public synchronized int importJson(final Reader reader) throws IOException {
+        startImport();
+        final JsonReader json = new JsonReader(reader);
+        final boolean topArray = json.peek() == JsonToken.BEGIN_ARRAY;
+        if (topArray) {
+            json.beginArray();
+            if (!json.hasNext()) {
+                json.endArray();
+                return importedCount;
+            }
+        }
+        // one entry per open object: its fields and whether it is added
+        final List<Map<String, String>> fields = new ArrayList<Map<String, String>>();
+        final List<Boolean> added = new ArrayList<Boolean>();
+        final List<Boolean> inChildren = new ArrayList<Boolean>();
+        json.beginObject();
+        int depth = open(fields, added, inChildren, 0);
+        while (depth > 0) {
+            final int level = depth - 1;
+            if (inChildren.get(level)) {
+                if (json.hasNext()) {
+                    json.beginObject();
+                    depth = open(fields, added, inChildren, depth);
+                } else {
+                    json.endArray();
+                    inChildren.set(level, false);
+                }
+            } else if (json.hasNext()) {
+                final String name = json.nextName();
+                if (name.equals(childrenKey) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                    if (!added.get(level)) {
+                        addNode(fields.get(level), level);
+                        added.set(level, true);
+                    }
+                    json.beginArray();
+                    inChildren.set(level, true);
+                } else {
+                    readField(json, name, fields.get(level));
+                }
+            } else {
+                json.endObject();
+                if (!added.get(level)) {
+                    addNode(fields.get(level), level);
+                }
+                depth--;
+                if (depth == 0 && topArray && json.hasNext()) {
+                    json.beginObject();
+                    depth = open(fields, added, inChildren, depth);
+                }
+            }
+        }
+        if (topArray) {
+            json.endArray();
+        }
+        flush();
+        return importedCount;
+    }
+
+    private static int open(final List<Map<String, String>> fields, final List<Boolean> added,
+                            final List<Boolean> inChildren, final int depth) {
+        if (fields.size() == depth) {
+            fields.add(new HashMap<String, String>());
+            added.add(false);
+            inChildren.add(false);
+        }
+        fields.get(depth).clear();
+        added.set(depth, false);
+        inChildren.set(depth, false);
+        return depth + 1;
+    }
+
+    private static void readField(final JsonReader json, final String name,
+                                  final Map<String, String> fields) throws IOException {
+        switch (json.peek()) {
+            case STRING:
+            case NUMBER:
+                fields.put(name, json.nextString());
+                break;
+            case BOOLEAN:
+                fields.put(name, String.valueOf(json.nextBoolean()));
+                break;
+            case NULL:
+                json.nextNull();
+                fields.put(name, null);
+                break;
+            default:
+                json.skipValue();
+                break;
+        }
+    }
+
+    public int importCsv(final InputStream in) throws IOException {
+        return importCsv(new InputStreamReader(in, UTF_8));
+    }
+
+    /**
+     * Reads the CSV rows and appends them to the top level of the builder.
+     * The reader is not closed.
+     *
+     * @param reader CSV input with a header row
+     * @return number of nodes added
+     * @throws IOException when reading fails or a row is malformed
+     */
+    public synchronized int importCsv(final Reader reader) throws IOException {
+        startImport();
+        final Reader in = reader instanceof BufferedReader ? reader : new BufferedReader(reader);
+        final List<String> header = new ArrayList<String>();
+        if (!readRecord(in, header)) {
+            return importedCount;
+        }
+        final List<String> values = new ArrayList<String>();
+        final Map<String, String> fields = new HashMap<String, String>();
+        for (int row = 1; readRecord(in, values); row++) {
+            if (values.size() == 1 && values.get(0).isEmpty()) {
+                continue; // blank line
+            }
+            fields.clear();
+            for (int i = 0; i < header.size(); i++) {
+                fields.put(header.get(i), i < values.size() ? values.get(i) : null);
+            }
+            final String level = fields.get(levelKey);
+            try {
+                addNode(fields, Integer.parseInt(level == null ? "" : level.trim()));
+            } catch (final NumberFormatException e) {
+                throw new IOException("Row " + row + " has no valid " + levelKey + ": " + level, e);
+            }
+        }
+        flush();
+        return importedCount;
+    }
+
+    /**
+     * Reads one CSV record into the list.
+     *
+     * @return false at the end of the input
+     */
+    private static boolean readRecord(final Reader in, final List<String> values) throws IOException {
+        values.clear();
+        final StringBuilder value = new StringBuilder();
+        int c = in.read();
+        if (c == -1) {
+            return false;
+        }
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Quoted field is not closed");
+                }
+                if (c == '"') {
+                    c = in.read();
+                    if (c != '"') {
+                        quoted = false;
+                        continue;
+                    }
+                }
+                value.append((char) c);
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else if (c == '\n' || c == -1) {
+                break;
+            } else if (c != '\r') {
+                value.append((char) c);
+            }
+            c = in.read();
+        }
+        values.add(value.toString());
+        return true;
+    }
+
+    private void startImport() {
+        batchIds.clear();
+        batchData.clear();
+        batchSize = FIRST_BATCH_SIZE;
+        importedCount = 0;
+    }
+
+    private void addNode(final Map<String, String> fields, final int level) {
+        final int index = batchIds.size();
+        batchIds.add(mapper.getId(fields));
+        batchData.add(mapper.getData(fields));
+        if (index == batchLevels.length) {
+            batchLevels = Arrays.copyOf(batchLevels, batchLevels.length * 2);
+        }
+        batchLevels[index] = level;
+        if (batchIds.size() == batchSize) {
+            flush();
+            batchSize = Math.min(MAX_BATCH_SIZE, batchSize * 2);
+        }
+    }
+
+    private void flush() {
+        if (batchIds.isEmpty()) {
+            return;
+        }
+        builder.sequentiallyAddNextNodes(batchIds, batchLevels, batchData, expanded);
+        importedCount += batchIds.size();
+        batchIds.clear();
+        batchData.clear();
+        if (progressListener != null) {
+            progressListener.onNodesImported(importedCount);
+        }
+    }
+}
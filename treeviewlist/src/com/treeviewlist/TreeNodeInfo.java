@@ -1,17 +1,28 @@
 package com.treeviewlist;
 
 /**
- * Information about the node.
+ * Information about the node. Infos passed to
+ * {@link TreeStateManager#getNodeInfo(Object, TreeNodeInfo)} are refilled in
+ * place, so one instance can serve a whole loop without creating garbage per
+ * row; such an info is only valid until it is filled again.
  *
  * @param <T> type of the id for the tree
  */
 public class TreeNodeInfo<T> {
-    private final T id;
-    private final int level;
-    private final boolean withChildren;
-    private final boolean visible;
-    private final boolean expanded;
-    private final Object data;
+    private T id;
+    private int level;
+    private boolean withChildren;
+    private boolean visible;
+    private boolean expanded;
+    private Object data;
+
+    /**
+     * Creates empty node information, to be filled by
+     * {@link TreeStateManager#getNodeInfo(Object, TreeNodeInfo)}.
+     */
+    public TreeNodeInfo() {
+        super();
+    }
 
     /**
      * Creates the node information.
@@ -26,12 +37,19 @@ public class TreeNodeInfo<T> {
                         final boolean withChildren, final boolean visible,
                         final boolean expanded, final Object data) {
         super();
+        set(id, level, withChildren, visible, expanded, data);
+    }
+
+    TreeNodeInfo<T> set(final T id, final int level,
+                        final boolean withChildren, final boolean visible,
+                        final boolean expanded, final Object data) {
         this.id = id;
         this.level = level;
         this.withChildren = withChildren;
         this.visible = visible;
         this.expanded = expanded;
         this.data = data;
+        return this;
     }
 
     public T getId() {
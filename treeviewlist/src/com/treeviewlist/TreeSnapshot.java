@@ -0,0 +1,368 @@
+package com.treeviewlist;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Immutable version of the tree published by the tree state manager. A new
+ * version copies only the nodes changed since the previous one together with
+ * their ancestors, every unchanged subtree is shared between versions. All
+ * fields are final, so a snapshot can be read from any thread without locking
+ * while the manager keeps mutating the live tree.
+ *
+ * @param <T> type of the identifier used by the tree
+ */
+public final class TreeSnapshot<T> {
+    private final Node<T> root;
+    private final long version;
+
+    TreeSnapshot(final Node<T> root, final long version) {
+        this.root = root;
+        this.version = version;
+    }
+
+    /**
+     * Version of the snapshot, increasing with every published snapshot of
+     * the same manager.
+     *
+     * @return version number
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Node standing for the top sentinel, its children are the top level
+     * nodes.
+     *
+     * @return root node without id
+     */
+    public Node<T> getRoot() {
+        return root;
+    }
+
+    public int getVisibleCount() {
+        return root.rowCount;
+    }
+
+    /**
+     * Finds the node shown at the position of the visible list in
+     * O(depth * log(children)).
+     *
+     * @param position position in the visible list
+     * @return the node or null if the position is out of range
+     */
+    public Node<T> getRowAt(final int position) {
+        return findRow(position, null, null);
+    }
+
+    /**
+     * Finds the node shown at the position together with its ancestors, as
+     * needed to draw the row, in O(depth * log(children)).
+     *
+     * @param position position in the visible list
+     * @return the row or null if the position is out of range
+     */
+    public RowPath<T> getRowPathAt(final int position) {
+        final List<Node<T>> path = new ArrayList<Node<T>>();
+        final BitSet lastChildren = new BitSet();
+        final Node<T> node = findRow(position, path, lastChildren);
+        return node == null ? null : new RowPath<T>(path, lastChildren, position, root.rowCount);
+    }
+
+    /**
+     * Walks down to the row, collecting the nodes passed and whether each of
+     * them closes the shown children of its parent when asked to.
+     */
+    private Node<T> findRow(final int position, final List<Node<T>> path,
+                            final BitSet lastChildren) {
+        if (position < 0 || position >= root.rowCount) {
+            return null;
+        }
+        Node<T> node = root;
+        int remaining = position;
+        while (true) {
+            Node<T> next = null;
+            int nextType = -1;
+            int nextIndex = -1;
+            for (int type = 0; type < node.children.length && next == null; type++) {
+                if (!node.expanded[type]) {
+                    continue;
+                }
+                final int[] rows = node.rowsBefore[type];
+                final int total = rows[rows.length - 1];
+                if (remaining >= total) {
+                    remaining -= total;
+                    continue;
+                }
+                nextType = type;
+                nextIndex = findRow(rows, remaining);
+                next = node.children[type][nextIndex];
+                remaining -= rows[nextIndex];
+            }
+            if (next == null) {
+                return null;
+            }
+            if (path != null) {
+                if (nextType == node.getLastShownType()
+                        && nextIndex == node.children[nextType].length - 1) {
+                    lastChildren.set(path.size());
+                }
+                path.add(next);
+            }
+            if (remaining == 0) {
+                return next;
+            }
+            remaining--;
+            node = next;
+        }
+    }
+
+    /**
+     * Last index whose preceding rows are not above the row given.
+     */
+    private static int findRow(final int[] rowsBefore, final int row) {
+        int low = 0;
+        int high = rowsBefore.length - 2;
+        while (low < high) {
+            final int middle = (low + high + 1) >>> 1;
+            if (rowsBefore[middle] <= row) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Allocates an array of nodes, such as the children of one type of a
+     * node. Generic arrays cannot be created directly; the unchecked cast is
+     * safe because the array starts empty and only ever receives nodes of the
+     * same tree.
+     *
+     * @param length number of nodes
+     * @return empty array typed for the tree
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Node<T>[] newNodeArray(final int length) {
+        return (Node<T>[]) new Node<?>[length];
+    }
+
+    /**
+     * Allocates the per type child arrays of a node, to be filled with
+     * {@link #newNodeArray(int)} results only, which keeps the cast safe.
+     *
+     * @param childTypeCount number of child types
+     * @return array of null child arrays typed for the tree
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Node<T>[][] newChildArrays(final int childTypeCount) {
+        return (Node<T>[][]) new Node<?>[childTypeCount][];
+    }
+
+    /**
+     * Node shown at a position of the visible list with the nodes above it,
+     * from the top level down. Everything is read from one snapshot, so the
+     * row is drawn consistently whatever happens to the live tree meanwhile.
+     *
+     * @param <T> type of the identifier used by the tree
+     */
+    public static final class RowPath<T> {
+        private final List<Node<T>> path;
+        private final BitSet lastChildren;
+        private final int position;
+        private final int rowCount;
+
+        RowPath(final List<Node<T>> path, final BitSet lastChildren, final int position,
+                final int rowCount) {
+            this.path = path;
+            this.lastChildren = lastChildren;
+            this.position = position;
+            this.rowCount = rowCount;
+        }
+
+        /**
+         * @return node shown in the row
+         */
+        public Node<T> getNode() {
+            return path.get(path.size() - 1);
+        }
+
+        public T getId() {
+            return getNode().getId();
+        }
+
+        public int getLevel() {
+            return path.size() - 1;
+        }
+
+        public int getPosition() {
+            return position;
+        }
+
+        /**
+         * @return id of the parent of the node, null for top level nodes
+         */
+        public T getParentId() {
+            return path.size() < 2 ? null : path.get(path.size() - 2).getId();
+        }
+
+        /**
+         * Node of the path at the level, the node itself at its own level.
+         *
+         * @param level level from 0 (top) to {@link #getLevel()}
+         * @return the node at the level
+         */
+        public Node<T> getAncestor(final int level) {
+            return path.get(level);
+        }
+
+        /**
+         * Whether the node of the path at the level is the last one of the
+         * shown children of its parent.
+         *
+         * @param level level from 0 (top) to {@link #getLevel()}
+         * @return true if no shown sibling follows it
+         */
+        public boolean isLastChild(final int level) {
+            return lastChildren.get(level);
+        }
+
+        /**
+         * @return whether no shown sibling follows the node
+         */
+        public boolean isLastChild() {
+            return isLastChild(getLevel());
+        }
+
+        public boolean isFirstRow() {
+            return position == 0;
+        }
+
+        public boolean isLastRow() {
+            return position == rowCount - 1;
+        }
+    }
+
+    /**
+     * Immutable copy of a single node with its children.
+     *
+     * @param <T> type of the identifier used by the tree
+     */
+    public static final class Node<T> {
+        private final T id;
+        private final Object data;
+        private final int level;
+        private final int nodeType;
+        private final Node<T>[][] children;
+        private final int[][] rowsBefore;
+        private final boolean[] expanded;
+        private final int rowCount;
+
+        Node(final T id, final Object data, final int level, final int nodeType,
+             final Node<T>[][] children, final boolean[] expanded) {
+            this.id = id;
+            this.data = data;
+            this.level = level;
+            this.nodeType = nodeType;
+            this.children = children;
+            this.expanded = expanded;
+            this.rowsBefore = new int[children.length][];
+            int rows = id == null ? 0 : 1;
+            for (int type = 0; type < children.length; type++) {
+                final Node<T>[] list = children[type];
+                final int[] before = new int[list.length + 1];
+                for (int i = 0; i < list.length; i++) {
+                    before[i + 1] = before[i] + list[i].rowCount;
+                }
+                rowsBefore[type] = before;
+                if (expanded[type]) {
+                    rows += before[list.length];
+                }
+            }
+            this.rowCount = rows;
+        }
+
+        public T getId() {
+            return id;
+        }
+
+        public Object getData() {
+            return data;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public int getNodeType() {
+            return nodeType;
+        }
+
+        public int getChildTypeCount() {
+            return children.length;
+        }
+
+        public int getChildCount(final int childType) {
+            return children[childType].length;
+        }
+
+        public Node<T> getChild(final int childType, final int index) {
+            return children[childType][index];
+        }
+
+        public boolean isExpanded(final int childType) {
+            return expanded[childType];
+        }
+
+        public boolean isChildrenExpand(final int childType) {
+            return expanded[childType] && children[childType].length > 0;
+        }
+
+        /**
+         * @return whether children of any type are shown below the node
+         */
+        public boolean hasChildrenExpand() {
+            return getLastShownType() != -1;
+        }
+
+        /**
+         * @return last type with children shown or -1
+         */
+        int getLastShownType() {
+            for (int type = children.length - 1; type >= 0; type--) {
+                if (isChildrenExpand(type)) {
+                    return type;
+                }
+            }
+            return -1;
+        }
+
+        public boolean hasChildren() {
+            for (final Node<T>[] list : children) {
+                if (list.length > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Rows the node occupies when shown: itself plus the rows of its
+         * expanded children.
+         *
+         * @return rows of the subtree
+         */
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        @Override
+        public String toString() {
+            return "TreeSnapshot.Node [id=" + id + ", level=" + level
+                    + ", rows=" + rowCount + "]";
+        }
+    }
+}
@@ -13,6 +13,19 @@ import java.util.List;
  */
 public interface TreeStateManager<T> extends Serializable {
 
+    /**
+     * Receives rows of {@link #getVisibleRange(int, int, VisibleRowConsumer)}.
+     *
+     * @param <T> type of the id for the tree
+     */
+    interface VisibleRowConsumer<T> {
+        /**
+         * @param position position of the row in the visible list
+         * @param row      the row, one info refilled for every row of the call
+         */
+        void onRow(int position, TreeNodeInfo<T> row);
+    }
+
     /**
      * Returns array of integers showing the location of the node in hierarchy.
      * It corresponds to heading numbering. {0,0,0} in 3 level node is the first
@@ -41,7 +54,18 @@ public interface TreeStateManager<T> extends Serializable {
     TreeNodeInfo<T> getNodeInfo(T id);
 
     /**
-     * Returns children of the node.
+     * Fills the given info with information about the node instead of
+     * creating a new one.
+     *
+     * @param id   node id
+     * @param info info to fill
+     * @return the info passed in
+     */
+    TreeNodeInfo<T> getNodeInfo(T id, TreeNodeInfo<T> info);
+
+    /**
+     * Returns children of the node. The list is a copy, it can be kept and
+     * iterated while the tree changes.
      *
      * @param id id of the node or null if asking for top nodes
      * @return children of the node
@@ -86,6 +110,18 @@ public interface TreeStateManager<T> extends Serializable {
      */
     void removeNodeRecursively(T id);
 
+    /**
+     * Moves the node together with all its descendants under another parent.
+     * The node keeps its data and the expand state of its subtree, and
+     * observers are notified once.
+     *
+     * @param id            id of the node to move
+     * @param newParent     id of the new parent. If null - moves to the top level
+     * @param beforeSibling child of the new parent before which the node is
+     *                      placed. If null - moves to the end.
+     */
+    void moveSubtree(T id, T newParent, T beforeSibling);
+
     /**
      * Expands all children of the node.
      *
@@ -142,6 +178,23 @@ public interface TreeStateManager<T> extends Serializable {
      */
     int getVisibleCount();
 
+    /**
+     * Returns position of the node in the visible list. Backed by visible row
+     * counts kept on every node, so it does not materialize the list.
+     *
+     * @param id id of the node
+     * @return position of the node or -1 if the node is not visible
+     */
+    int getVisiblePosition(T id);
+
+    /**
+     * Returns id of the node shown at the position of the visible list.
+     *
+     * @param position position in the visible list
+     * @return id of the node or null if position is out of range
+     */
+    T getVisibleIdAt(int position);
+
     /**
      * Returns visible node list.
      *
@@ -149,6 +202,18 @@ public interface TreeStateManager<T> extends Serializable {
      */
     List<T> getVisibleList();
 
+    /**
+     * Streams the rows of a window of the visible list, e.g. the rows a list
+     * view shows, without materializing the rest of the list. The consumer is
+     * called under the manager's lock and must not change the tree.
+     *
+     * @param firstPosition position of the first row
+     * @param count         maximum number of rows
+     * @param consumer      receives the rows in order
+     * @return number of all visible rows
+     */
+    int getVisibleRange(int firstPosition, int count, VisibleRowConsumer<T> consumer);
+
     /**
      * Registers observers with the manager.
      *
@@ -163,6 +228,48 @@ public interface TreeStateManager<T> extends Serializable {
      */
     void unregisterDataSetObserver(final DataSetObserver observer);
 
+    /**
+     * Starts a batch of mutations. Until the matching {@link #commit()}
+     * observers are not notified; batches may be nested.
+     */
+    void beginBatch();
+
+    /**
+     * Ends a batch of mutations. When the outermost batch ends and anything
+     * changed, the visible list is rebuilt and observers are notified once.
+     */
+    void commit();
+
+    /**
+     * Runs the mutations as a single batch.
+     *
+     * @param mutations code changing the tree
+     */
+    void runBatch(Runnable mutations);
+
+    /**
+     * Registers listener receiving inserted, removed, moved and changed rows
+     * of the visible list.
+     *
+     * @param listener listener
+     */
+    void registerTreeChangeListener(TreeChangeListener listener);
+
+    /**
+     * Unregisters listener of visible list changes.
+     *
+     * @param listener listener
+     */
+    void unregisterTreeChangeListener(TreeChangeListener listener);
+
+    /**
+     * Returns the last published immutable version of the tree. It can be
+     * read without locking while the tree is being changed.
+     *
+     * @return snapshot of the tree
+     */
+    TreeSnapshot<T> getSnapshot();
+
     /**
      * Cleans tree stored in manager. After this operation the tree is empty.
      */
@@ -182,4 +289,18 @@ public interface TreeStateManager<T> extends Serializable {
     TreeNodeInfo<T> getPreviousVisibleItem(T nodeID);
 
     TreeNodeInfo<T> getNextVisibleItem(T nodeID);
+
+    /**
+     * Like {@link #getPreviousVisibleItem(Object)}, filling the given info.
+     *
+     * @return the info passed in or null if there is no previous item
+     */
+    TreeNodeInfo<T> getPreviousVisibleItem(T nodeID, TreeNodeInfo<T> info);
+
+    /**
+     * Like {@link #getNextVisibleItem(Object)}, filling the given info.
+     *
+     * @return the info passed in or null if there is no next item
+     */
+    TreeNodeInfo<T> getNextVisibleItem(T nodeID, TreeNodeInfo<T> info);
 }
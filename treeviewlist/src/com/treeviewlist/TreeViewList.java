@@ -90,6 +90,7 @@ public class TreeViewList extends ListView {
         treeAdapter = (AbstractTreeViewAdapter< ? >) adapter;
         syncAdapter();
         super.setAdapter(treeAdapter);
+        treeAdapter.attachListView(this);
     }
 
     private void syncAdapter() {
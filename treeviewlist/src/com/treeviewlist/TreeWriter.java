@@ -0,0 +1,252 @@
+package com.treeviewlist;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optional single-writer mode of a tree state manager. Mutations are queued
+ * from any thread and applied by one dedicated writer thread, which drains
+ * everything queued so far and applies it as one batch. After every batch the
+ * new snapshot of the tree is handed to the version listener, so the UI only
+ * ever sees completed versions.
+ * <p>
+ * Every mutation is tagged with a generation. {@link #invalidate()} starts a
+ * new generation and mutations of older generations still waiting in the
+ * queue are dropped, so results of outdated asynchronous work never reach the
+ * tree. Once the writer is used, the tree should not be mutated directly.
+ * <p>
+ * A failure that escapes a mutation, such as an {@link Error}, stops the
+ * writer: it is logged, the queued mutations are discarded and later submits
+ * throw an {@link IllegalStateException} caused by it.
+ *
+ * @param <T> type of the identifier used by the tree
+ */
+public class TreeWriter<T> {
+    private static final String TAG = TreeWriter.class.getSimpleName();
+    private static final int MAX_BATCH_SIZE = 512;
+
+    /**
+     * Change of the tree applied on the writer thread.
+     *
+     * @param <T> type of the identifier used by the tree
+     */
+    public interface Mutation<T> {
+        void apply(InMemoryTreeStateManager<T> manager);
+    }
+
+    /**
+     * Receives the versions completed by the writer. Called on the writer
+     * thread, implementations post to the UI thread themselves.
+     *
+     * @param <T> type of the identifier used by the tree
+     */
+    public interface VersionListener<T> {
+        /**
+         * @param snapshot   snapshot of the tree after the batch
+         * @param sequence   sequence number of the last applied mutation
+         * @param generation generation the batch was applied in
+         */
+        void onVersionPublished(TreeSnapshot<T> snapshot, long sequence, long generation);
+    }
+
+    private final InMemoryTreeStateManager<T> manager;
+    private final BlockingQueue<Command<T>> queue = new LinkedBlockingQueue<Command<T>>();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Thread thread;
+    /**
+     * Guards running together with the queue, so nothing is queued behind the
+     * command closing the writer.
+     */
+    private final Object lock = new Object();
+    private volatile long appliedSequence;
+    private volatile boolean running = true;
+    private volatile Throwable failure;
+    private volatile VersionListener<T> versionListener;
+
+    public TreeWriter(final InMemoryTreeStateManager<T> manager) {
+        this.manager = manager;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void setVersionListener(final VersionListener<T> versionListener) {
+        this.versionListener = versionListener;
+    }
+
+    /**
+     * Queues the mutation in the current generation.
+     *
+     * @param mutation change of the tree
+     * @return sequence number of the mutation
+     */
+    public long submit(final Mutation<T> mutation) {
+        return submit(mutation, generation.get());
+    }
+
+    /**
+     * Queues the mutation computed for the generation given, typically the
+     * one read by {@link #getGeneration()} when the asynchronous work started.
+     * The mutation is dropped if the generation is outdated when it is
+     * applied.
+     *
+     * @param mutation   change of the tree
+     * @param generation generation the mutation belongs to
+     * @return sequence number of the mutation
+     */
+    public long submit(final Mutation<T> mutation, final long generation) {
+        synchronized (lock) {
+            if (!running) {
+                final Throwable cause = failure;
+                throw cause == null ? new IllegalStateException("The tree writer is closed")
+                        : new IllegalStateException("The tree writer failed", cause);
+            }
+            final long number = sequence.incrementAndGet();
+            queue.add(new Command<T>(mutation, generation, number));
+            return number;
+        }
+    }
+
+    /**
+     * Starts a new generation. Queued mutations of older generations are
+     * dropped instead of applied.
+     *
+     * @return the new generation
+     */
+    public long invalidate() {
+        return generation.incrementAndGet();
+    }
+
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Sequence number of the last mutation applied or dropped, compare with
+     * the number returned by submit to find out whether it was processed.
+     *
+     * @return last processed sequence number
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * Stops the writer thread once the mutations queued so far are applied.
+     */
+    public void close() {
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            queue.add(new Command<T>(null, 0, 0));
+        }
+    }
+
+    /**
+     * @return what stopped the writer thread, or null if it did not fail
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    private void writeLoop() {
+        final List<Command<T>> batch = new ArrayList<Command<T>>();
+        try {
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                } catch (final InterruptedException e) {
+                    Log.w(TAG, "Tree writer interrupted", e);
+                    fail(e);
+                    return;
+                }
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                final boolean closed = applyBatch(batch);
+                batch.clear();
+                if (closed) {
+                    return;
+                }
+            }
+        } catch (final RuntimeException e) {
+            Log.e(TAG, "Tree writer stopped", e);
+            fail(e);
+        } catch (final Error e) {
+            Log.e(TAG, "Tree writer stopped", e);
+            fail(e);
+        }
+    }
+
+    /**
+     * Stops accepting mutations after the writer thread ended abnormally and
+     * drops the ones still queued, which would never be applied.
+     */
+    private void fail(final Throwable cause) {
+        synchronized (lock) {
+            failure = cause;
+            running = false;
+            queue.clear();
+        }
+    }
+
+    /**
+     * Applies the commands as one batch of the manager.
+     *
+     * @return true if the writer was closed
+     */
+    private boolean applyBatch(final List<Command<T>> batch) {
+        final long currentGeneration = generation.get();
+        boolean closed = false;
+        long lastSequence = appliedSequence;
+        manager.beginBatch();
+        try {
+            for (final Command<T> command : batch) {
+                if (command.mutation == null) {
+                    closed = true;
+                    continue;
+                }
+                lastSequence = Math.max(lastSequence, command.sequence);
+                if (command.generation < currentGeneration) {
+                    continue; // outdated, dropped
+                }
+                try {
+                    command.mutation.apply(manager);
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "Mutation " + command.sequence + " failed", e);
+                }
+            }
+        } finally {
+            manager.commit();
+        }
+        appliedSequence = lastSequence;
+        final VersionListener<T> listener = versionListener;
+        if (listener != null) {
+            listener.onVersionPublished(manager.getSnapshot(), lastSequence, currentGeneration);
+        }
+        return closed;
+    }
+
+    private static final class Command<T> {
+        final Mutation<T> mutation;
+        final long generation;
+        final long sequence;
+
+        Command(final Mutation<T> mutation, final long generation, final long sequence) {
+            this.mutation = mutation;
+            this.generation = generation;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.treeviewlist;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that tree nodes allocate a child list only once they get a child.
+ * The lists are counted instead of measuring the heap, which does not depend
+ * on when the garbage collector runs.
+ */
+public class TreeFootprintTest extends TestCase {
+    private static final int PARENT_COUNT = 100;
+    private static final int LEAVES_PER_PARENT = 10;
+
+    private InMemoryTreeStateManager<String> manager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        manager = new InMemoryTreeStateManager<String>();
+        manager.beginBatch();
+        for (int i = 0; i < PARENT_COUNT; i++) {
+            final String parent = "p" + i;
+            manager.addAfterChild(null, parent, null);
+            for (int j = 0; j < LEAVES_PER_PARENT; j++) {
+                manager.addAfterChild(parent, parent + "/" + j, null);
+            }
+        }
+        manager.commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        manager = null;
+        super.tearDown();
+    }
+
+    public void testOnlyParentsAllocateChildLists() {
+        assertEquals(PARENT_COUNT, countChildLists());
+    }
+
+    public void testReadingLeavesDoesNotAllocateChildLists() {
+        for (final String parent : manager.getChildren(null)) {
+            for (final String leaf : manager.getChildren(parent)) {
+                final InMemoryTreeNode<String> node = manager.getInmemoryTreeNode(leaf);
+                assertEquals(0, node.getChildCount());
+                assertTrue(node.getChildIdList().isEmpty());
+                assertFalse(node.isChildrenExpand(0));
+                assertTrue(manager.getChildren(leaf).isEmpty());
+            }
+        }
+        assertEquals(PARENT_COUNT, countChildLists());
+    }
+
+    public void testAddingChildToLeafAllocatesItsList() {
+        manager.addAfterChild("p0/0", "p0/0/0", null);
+        assertTrue(manager.getInmemoryTreeNode("p0/0").hasChildList());
+        assertEquals(PARENT_COUNT + 1, countChildLists());
+    }
+
+    /**
+     * @return number of nodes below the top level with their own child list
+     */
+    private int countChildLists() {
+        int count = 0;
+        for (final String parent : manager.getChildren(null)) {
+            if (manager.getInmemoryTreeNode(parent).hasChildList()) {
+                count++;
+            }
+            for (final String leaf : manager.getChildren(parent)) {
+                if (manager.getInmemoryTreeNode(leaf).hasChildList()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}